@@ -261,7 +261,7 @@ public class TensorGuidedPainting {
     private MouseMotionListener _mml = new MouseMotionAdapter() {
       public void mouseDragged(MouseEvent e) {
         Point3 point = _mouseConstrained.getPoint(e);
-        paintAt(point);
+        paintTo(point);
       }
     };
     private MouseWheelListener _mwl = new MouseWheelListener() {
@@ -283,6 +283,32 @@ public class TensorGuidedPainting {
       paintAt(i1,i2,i3);
     }
 
+    // Paints a stroke from the brush location to a point, so that samples
+    // between mouse events are painted, with only one solve for times.
+    private void paintTo(Point3 point) {
+      int i1 = max(0,min(_n1-1,(int)(_s1.indexOfNearest(point.z)+0.5)));
+      int i2 = max(0,min(_n2-1,(int)(_s2.indexOfNearest(point.y)+0.5)));
+      int i3 = max(0,min(_n3-1,(int)(_s3.indexOfNearest(point.x)+0.5)));
+      int[] k = _dm.getLocation();
+      int d1 = i1-k[0], d2 = i2-k[1], d3 = i3-k[2];
+      int ns = max(abs(d1),abs(d2),abs(d3));
+      if (ns==0) return;
+      int[] j1 = new int[ns];
+      int[] j2 = new int[ns];
+      int[] j3 = new int[ns];
+      for (int is=0; is<ns; ++is) {
+        float f = (float)(is+1)/(float)ns;
+        j1[is] = k[0]+round(f*d1);
+        j2[is] = k[1]+round(f*d2);
+        j3[is] = k[2]+round(f*d3);
+      }
+      float size = _dm.getSize();
+      if (_erasing) _p3.eraseStroke(j1,j2,j3,size,_dm);
+      else          _p3.paintStroke(j1,j2,j3,_brushColor,size,_dm);
+      _ipg.update2();
+      updateContour();
+    }
+
     private void paintAt(int i1, int i2, int i3) {
       _dm.setLocation(i1,i2,i3);
       updateContour();
@@ -0,0 +1,163 @@
+/****************************************************************************
+Copyright (c) 2010, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package cae.io;
+
+import cae.vis.Contour;
+import cae.vis.MarchingCubes;
+
+import edu.mines.jtk.io.ArrayInputStream;
+import edu.mines.jtk.io.ArrayOutputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A binary file containing a 3D contour.
+ * A contour file has the following format, with all values big-endian:
+ * <code>
+ * nx nt nu
+ * x[3*nx]
+ * u[3*nx] (only if nu is 1)
+ * i[3*nt]
+ * </code>
+ * where nx is the number of vertices, nt is the number of triangles, nu is
+ * 1 if normal vectors are present and 0 otherwise, x are the packed vertex
+ * coordinates, u are the packed normal vectors, and i are the packed
+ * vertex indices of triangles.
+ * @author Chris Engelsma, Colorado School of Mines
+ * @version 2010.12.10
+ */
+public class ContourFile {
+
+  /**
+   * Reads a contour from a file.
+   * @param fileName the name of the contour file.
+   * @return the contour.
+   */
+  public static Contour read(String fileName) {
+    try {
+      ArrayInputStream ais = new ArrayInputStream(fileName);
+      int nx = ais.readInt();
+      int nt = ais.readInt();
+      int nu = ais.readInt();
+      Contour contour = new Contour();
+      contour.x = new float[3*nx];
+      contour.u = (nu!=0)?new float[3*nx]:null;
+      contour.i = new int[3*nt];
+      ais.readFloats(contour.x);
+      if (contour.u!=null) ais.readFloats(contour.u);
+      ais.readInts(contour.i);
+      ais.close();
+      return contour;
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  /**
+   * Writes a contour to a file.
+   * @param fileName the name of the contour file.
+   * @param contour the contour.
+   */
+  public static void write(String fileName, Contour contour) {
+    Writer w = new Writer(fileName);
+    w.addVertices(contour.x.length/3,contour.x,contour.u);
+    w.addTriangles(contour.i.length/3,contour.i);
+    w.close();
+  }
+
+  /**
+   * A contour sink that writes a streamed contour to a file.
+   * Because the number of vertices and triangles are not known until the
+   * contour is complete, normals and triangles are buffered in temporary
+   * files that are appended to the contour file when this writer is
+   * closed. Memory required is independent of the size of the contour.
+   */
+  public static class Writer implements MarchingCubes.ContourSink {
+
+    /**
+     * Constructs a writer for the specified contour file.
+     * @param fileName the name of the contour file.
+     */
+    public Writer(String fileName) {
+      _fileName = fileName;
+      try {
+        _fx = File.createTempFile("contour",".x");
+        _fu = File.createTempFile("contour",".u");
+        _fi = File.createTempFile("contour",".i");
+        _ax = new ArrayOutputStream(_fx.getPath());
+        _au = new ArrayOutputStream(_fu.getPath());
+        _ai = new ArrayOutputStream(_fi.getPath());
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+    }
+
+    public void addVertices(int nx, float[] x, float[] u) {
+      try {
+        _ax.writeFloats(x,0,3*nx);
+        if (u!=null) _au.writeFloats(u,0,3*nx);
+        _nx += nx;
+        _nu |= u!=null;
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+    }
+
+    public void addTriangles(int nt, int[] i) {
+      try {
+        _ai.writeInts(i,0,3*nt);
+        _nt += nt;
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+    }
+
+    /**
+     * Completes the contour file and deletes temporary files.
+     */
+    public void close() {
+      try {
+        _ax.close();
+        _au.close();
+        _ai.close();
+        ArrayOutputStream aos = new ArrayOutputStream(_fileName);
+        aos.writeInt(_nx);
+        aos.writeInt(_nt);
+        aos.writeInt(_nu?1:0);
+        aos.flush();
+        copy(_fx,aos);
+        if (_nu) copy(_fu,aos);
+        copy(_fi,aos);
+        aos.close();
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      } finally {
+        _fx.delete();
+        _fu.delete();
+        _fi.delete();
+      }
+    }
+
+    private String _fileName;
+    private File _fx,_fu,_fi;
+    private ArrayOutputStream _ax,_au,_ai;
+    private int _nx,_nt;
+    private boolean _nu;
+
+    private static void copy(File f, OutputStream os) throws IOException {
+      InputStream is = new FileInputStream(f);
+      byte[] b = new byte[1<<16];
+      for (int n=is.read(b); n>=0; n=is.read(b))
+        os.write(b,0,n);
+      is.close();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/****************************************************************************
+Copyright (c) 2010, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package cae.io;
+
+import cae.vis.MarchingCubes;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A 3D image of floats in a file, read one plane at a time.
+ * Image values are stored in the file as raw floats, with the 1st
+ * dimension varying fastest, possibly after a header of fixed length.
+ * Each plane is read directly from its position in the file into one
+ * buffer that is reused for all planes, so that images larger than
+ * memory, and larger than 2 GB, may be read plane by plane, for example,
+ * by {@link cae.vis.MarchingCubes#streamContour}. Unlike a memory-mapped
+ * buffer, which remains mapped until it is garbage collected, the buffer
+ * never holds more than one plane.
+ * @author Chris Engelsma, Colorado School of Mines
+ * @version 2010.12.10
+ */
+public class MappedImage implements MarchingCubes.PlaneSource {
+
+  /**
+   * Constructs a mapped image of big-endian floats with no header.
+   * This is the format written by {@link edu.mines.jtk.io.ArrayOutputStream}.
+   * @param fileName the name of the file.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   * @param n3 number of samples in the 3rd dimension.
+   */
+  public MappedImage(String fileName, int n1, int n2, int n3) {
+    this(fileName,n1,n2,n3,ByteOrder.BIG_ENDIAN,0);
+  }
+
+  /**
+   * Constructs a mapped image.
+   * @param fileName the name of the file.
+   * @param n1 number of samples in the 1st dimension.
+   * @param n2 number of samples in the 2nd dimension.
+   * @param n3 number of samples in the 3rd dimension.
+   * @param order the byte order of floats in the file.
+   * @param offset the number of bytes preceding the first float.
+   */
+  public MappedImage(
+    String fileName, int n1, int n2, int n3, ByteOrder order, long offset)
+  {
+    _n1 = n1;
+    _n2 = n2;
+    _n3 = n3;
+    _order = order;
+    _offset = offset;
+    try {
+      _raf = new RandomAccessFile(fileName,"r");
+      _fc = _raf.getChannel();
+      long need = offset+4L*n1*n2*n3;
+      if (_fc.size()<need)
+        throw new IOException(fileName+" has "+_fc.size()+" bytes;"+
+                              " expected at least "+need);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  /**
+   * Gets the number of samples in the 1st dimension.
+   * @return the number of samples.
+   */
+  public int getN1() {
+    return _n1;
+  }
+
+  /**
+   * Gets the number of samples in the 2nd dimension.
+   * @return the number of samples.
+   */
+  public int getN2() {
+    return _n2;
+  }
+
+  /**
+   * Gets the number of samples in the 3rd dimension.
+   * @return the number of samples.
+   */
+  public int getN3() {
+    return _n3;
+  }
+
+  /**
+   * Reads the specified plane of image values.
+   * @param i3 the index in the 3rd dimension of the plane.
+   * @param p array[n2][n1] to be filled with image values.
+   */
+  public void readPlane(int i3, float[][] p) {
+    if (_bb==null) {
+      _bb = ByteBuffer.allocateDirect(4*_n1*_n2);
+      _bb.order(_order);
+      _fb = _bb.asFloatBuffer();
+    }
+    long pos = _offset+4L*_n1*_n2*i3;
+    _bb.clear();
+    try {
+      while (_bb.hasRemaining()) {
+        int nread = _fc.read(_bb,pos+_bb.position());
+        if (nread<0)
+          throw new IOException("unexpected end of file");
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    _fb.clear();
+    for (int i2=0; i2<_n2; ++i2)
+      _fb.get(p[i2],0,_n1);
+  }
+
+  /**
+   * Reads the entire image into memory.
+   * @return array[n3][n2][n1] of image values.
+   */
+  public float[][][] readImage() {
+    float[][][] f = new float[_n3][_n2][_n1];
+    for (int i3=0; i3<_n3; ++i3)
+      readPlane(i3,f[i3]);
+    return f;
+  }
+
+  /**
+   * Closes the file for this image.
+   */
+  public void close() {
+    try {
+      _bb = null;
+      _fb = null;
+      _raf.close();
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private int _n1,_n2,_n3;
+  private ByteOrder _order;
+  private long _offset;
+  private RandomAccessFile _raf;
+  private FileChannel _fc;
+  private ByteBuffer _bb; // bytes of one plane, reused for all planes
+  private FloatBuffer _fb; // floats viewed from those bytes
+}
@@ -31,6 +31,38 @@ public class NRRDFile {
     }
   }
 
+  /**
+   * Maps the raw data of a NRRD file without reading it into memory.
+   * Only 3D images of floats are supported. A relative name of the raw
+   * data file is resolved relative to the directory of the header file.
+   * @param nhdr the name of the NRRD header file.
+   * @return the mapped image.
+   * @throws IllegalArgumentException if the header does not describe a
+   *  3D image of floats in a separate data file.
+   */
+  public static MappedImage map(String nhdr) {
+    File fnhdr = new File(nhdr);
+    Map<String,String> header = getHeaderMap(fnhdr);
+    String dims = header.get("dimension1");
+    String type = header.get("type1");
+    if (dims==null || Integer.parseInt(dims)!=3 || !"float".equals(type))
+      throw new IllegalArgumentException(
+        nhdr+": only 3D floats can be mapped");
+    String rawFile = header.get("data file2");
+    if (rawFile==null)
+      throw new IllegalArgumentException(
+        nhdr+": no data file to map");
+    int n1 = Integer.parseInt(header.get("sizes1"));
+    int n2 = Integer.parseInt(header.get("sizes2"));
+    int n3 = Integer.parseInt(header.get("sizes3"));
+    ByteOrder bo = ByteOrder.BIG_ENDIAN;
+    if (!"big".equals(header.get("endian1"))) bo = ByteOrder.LITTLE_ENDIAN;
+    File file = new File(rawFile);
+    if (!file.isAbsolute())
+      file = new File(fnhdr.getAbsoluteFile().getParentFile(),rawFile);
+    return new MappedImage(file.getPath(),n1,n2,n3,bo,0);
+  }
+
   public float[] getFloats() {
     return raw;
   }
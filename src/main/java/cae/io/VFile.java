@@ -32,6 +32,25 @@ public class VFile {
     }
   }
 
+  /**
+   * Maps a .v file without reading its floats into memory.
+   * @param fileName the name of the .v file.
+   * @return the mapped image.
+   */
+  public static MappedImage map(String fileName) {
+    try {
+      ArrayInputStream ais =
+        new ArrayInputStream(fileName, ByteOrder.LITTLE_ENDIAN);
+      int nx = ais.readInt();
+      int ny = ais.readInt();
+      int nz = ais.readInt();
+      ais.close();
+      return new MappedImage(fileName,nx,ny,nz,ByteOrder.LITTLE_ENDIAN,12);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
   /**
    * Gets the floats as a 3D array
    * @return the floats.
@@ -0,0 +1,137 @@
+/****************************************************************************
+Copyright (c) 2010, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package cae.paint;
+
+import cae.vis.Contour;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Extracts contours of a 3D painting in a background thread.
+ * After voxels are painted, the painting thread calls {@link #update()},
+ * which takes a snapshot of the painting and returns immediately. The
+ * contour of that snapshot is then extracted in a background thread, and
+ * passed to a listener. If a newer snapshot is taken before extraction is
+ * complete, extraction of the older snapshot is cancelled, and restarted
+ * for the newer one. Slabs of cubes marched for cancelled snapshots are
+ * not lost; each extraction marches only those slabs changed since the
+ * previous extraction completed.
+ * @author Chris Engelsma, Colorado School of Mines
+ * @version 2010.12.10
+ */
+public class ContourExtractor {
+
+  /**
+   * A listener for extracted contours.
+   */
+  public interface Listener {
+
+    /**
+     * Called in the background thread when a contour has been extracted.
+     * Listeners that update a user interface should do so in the event
+     * dispatch thread.
+     * @param contour the contour.
+     * @param version the version of the painting for the contour.
+     */
+    public void contourExtracted(Contour contour, long version);
+  }
+
+  /**
+   * Constructs an extractor for the specified painting and contour value.
+   * @param painting the 3D painting.
+   * @param c the contour value.
+   * @param listener the listener for extracted contours.
+   */
+  public ContourExtractor(Painting3 painting, float c, Listener listener) {
+    _painting = painting;
+    _c = c;
+    _listener = listener;
+    _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r,"ContourExtractor");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Requests a contour for the current version of the painting.
+   * This method must be called in the thread that paints, after voxels
+   * have been painted, and not while they are being painted.
+   */
+  public void update() {
+    Painting3 next = _painting.snapshot();
+    synchronized(this) {
+      if (_stopped) return;
+      if (_next!=null) next.addChanges(_next);
+      _next = next;
+      if (_current!=null) _current.cancel();
+      if (!_scheduled) {
+        _scheduled = true;
+        _executor.execute(new Runnable() {
+          public void run() {
+            extract();
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Cancels any extraction in progress, and stops the background thread.
+   * Contours are not extracted after this method is called.
+   */
+  public void stop() {
+    synchronized(this) {
+      _stopped = true;
+      _next = null;
+      if (_current!=null) _current.cancel();
+    }
+    _executor.shutdown();
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private Painting3 _painting; // the painting
+  private float _c; // the contour value
+  private Listener _listener;
+  private ExecutorService _executor; // the background thread
+  private boolean _scheduled; // true, while extraction is scheduled
+  private boolean _stopped; // true, if stopped
+  private Painting3 _next; // the snapshot to extract next, if any
+  private Painting3 _current; // the snapshot being extracted, if any
+  private Painting3 _last; // the snapshot most recently extracted
+
+  /* Extracts contours for snapshots until none are waiting. */
+  private void extract() {
+    for (;;) {
+      Painting3 p;
+      synchronized(this) {
+        p = _next;
+        _next = null;
+        _current = p;
+        if (p==null) {
+          _scheduled = false;
+          return;
+        }
+      }
+      p.inherit(_last);
+      _last = p;
+      try {
+        Contour contour = p.getContour(_c);
+        _listener.contourExtracted(contour,p.getVersion());
+      } catch (CancellationException e) {
+        // A newer snapshot is waiting.
+      }
+    }
+  }
+}
@@ -0,0 +1,515 @@
+/****************************************************************************
+Copyright (c) 2010, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package cae.paint;
+
+import cae.util.IntList;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sparse storage of paint values and edge intersections for a 3D painting.
+ * Samples are grouped into bricks of 16x16x16 samples. A brick is
+ * allocated only when a value other than the default (zero paint, or -1
+ * for no edge intersection) is first stored in one of its samples; all
+ * other bricks read as one shared empty brick. Memory is therefore
+ * proportional to the painted region, not to the volume, and clearing all
+ * paint costs time proportional to the number of allocated bricks.
+ * <p>
+ * A dense array of paint values may be attached to this storage. Paint
+ * values stored in bricks are also stored in that array, so that it
+ * remains a view of the painting that can be displayed.
+ * <p>
+ * Snapshots share bricks with this storage, and bricks are copied when
+ * first written after a snapshot, so that the cost of a snapshot is
+ * proportional to the number of bricks, not samples, and neither this
+ * storage nor the snapshot sees values later stored in the other.
+ * <p>
+ * Bricks may be allocated concurrently by threads that store values in
+ * different samples, but clearing and snapshots must not be concurrent
+ * with storing.
+ * @author Chris Engelsma, Colorado School of Mines
+ * @version 2010.12.10
+ */
+class PaintBricks implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Log base 2 of the number of samples on each side of a brick.
+   */
+  static final int SHIFT = 4;
+
+  /**
+   * Number of samples on each side of a brick.
+   */
+  static final int SIZE = 1<<SHIFT;
+
+  /**
+   * Constructs empty storage for the specified numbers of samples.
+   * @param n1 number of samples in 1st dimension.
+   * @param n2 number of samples in 2nd dimension.
+   * @param n3 number of samples in 3rd dimension.
+   */
+  PaintBricks(int n1, int n2, int n3) {
+    _n1 = n1;
+    _n2 = n2;
+    _n3 = n3;
+    _nb1 = (n1+MASK)>>SHIFT;
+    _nb2 = (n2+MASK)>>SHIFT;
+    _nb3 = (n3+MASK)>>SHIFT;
+    _bricks = new AtomicReferenceArray<Brick>(_nb1*_nb2*_nb3);
+    _list = new IntList();
+    _stamp = STAMPS.incrementAndGet();
+  }
+
+  /**
+   * Returns a snapshot of this storage.
+   * No dense array of paint values is attached to the snapshot.
+   * @return the snapshot.
+   */
+  PaintBricks snapshot() {
+    PaintBricks s = new PaintBricks(_n1,_n2,_n3);
+    int nb = _bricks.length();
+    for (int ib=0; ib<nb; ++ib)
+      s._bricks.set(ib,_bricks.get(ib));
+    int[] list = getList();
+    for (int il=0; il<list.length; ++il)
+      s._list.add(list[il]);
+    _stamp = STAMPS.incrementAndGet();
+    return s;
+  }
+
+  /**
+   * Attaches a dense array of paint values to this storage.
+   * Non-zero values in the array are copied into bricks, and paint values
+   * subsequently stored are also stored in the array.
+   * @param paint array[n3][n2][n1] of paint values.
+   */
+  void attach(float[][][] paint) {
+    _view = null;
+    for (int i3=0; i3<_n3; ++i3) {
+      for (int i2=0; i2<_n2; ++i2) {
+        float[] p = paint[i3][i2];
+        for (int i1=0; i1<_n1; ++i1) {
+          if (p[i1]!=0.0f)
+            setPaint(i1,i2,i3,p[i1]);
+        }
+      }
+    }
+    _view = paint;
+  }
+
+  /**
+   * Gets a dense array of paint values.
+   * If no array is attached, one is allocated, filled from allocated
+   * bricks, and attached.
+   * @return array[n3][n2][n1] of paint values.
+   */
+  float[][][] getDense() {
+    if (_view==null) {
+      float[][][] view = new float[_n3][_n2][_n1];
+      int[] list = getList();
+      for (int il=0; il<list.length; ++il)
+        copyBrick(list[il],view);
+      _view = view;
+    }
+    return _view;
+  }
+
+  /**
+   * Gets the paint value for the specified sample.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @return the paint value.
+   */
+  float getPaint(int i1, int i2, int i3) {
+    return get(i1,i2,i3).p[index(i1,i2,i3)];
+  }
+
+  /**
+   * Gets the edge intersection in the 1st dimension for a sample.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @return the edge intersection; -1, if none.
+   */
+  byte getEdge1(int i1, int i2, int i3) {
+    return get(i1,i2,i3).v1[index(i1,i2,i3)];
+  }
+
+  /**
+   * Gets the edge intersection in the 2nd dimension for a sample.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @return the edge intersection; -1, if none.
+   */
+  byte getEdge2(int i1, int i2, int i3) {
+    return get(i1,i2,i3).v2[index(i1,i2,i3)];
+  }
+
+  /**
+   * Gets the edge intersection in the 3rd dimension for a sample.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @return the edge intersection; -1, if none.
+   */
+  byte getEdge3(int i1, int i2, int i3) {
+    return get(i1,i2,i3).v3[index(i1,i2,i3)];
+  }
+
+  /**
+   * Sets the paint value for the specified sample.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @param p the paint value.
+   */
+  void setPaint(int i1, int i2, int i3, float p) {
+    Brick b = get(i1,i2,i3,p!=0.0f);
+    if (b!=null) {
+      b.p[index(i1,i2,i3)] = p;
+      if (_view!=null)
+        _view[i3][i2][i1] = p;
+    }
+  }
+
+  /**
+   * Sets the edge intersection in the 1st dimension for a sample.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @param v the edge intersection; -1, if none.
+   */
+  void setEdge1(int i1, int i2, int i3, byte v) {
+    Brick b = get(i1,i2,i3,v!=-1);
+    if (b!=null) b.v1[index(i1,i2,i3)] = v;
+  }
+
+  /**
+   * Sets the edge intersection in the 2nd dimension for a sample.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @param v the edge intersection; -1, if none.
+   */
+  void setEdge2(int i1, int i2, int i3, byte v) {
+    Brick b = get(i1,i2,i3,v!=-1);
+    if (b!=null) b.v2[index(i1,i2,i3)] = v;
+  }
+
+  /**
+   * Sets the edge intersection in the 3rd dimension for a sample.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @param v the edge intersection; -1, if none.
+   */
+  void setEdge3(int i1, int i2, int i3, byte v) {
+    Brick b = get(i1,i2,i3,v!=-1);
+    if (b!=null) b.v3[index(i1,i2,i3)] = v;
+  }
+
+  /**
+   * Gets paint values for one row of samples.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @param p array[n1] of paint values.
+   */
+  void getRow(int i2, int i3, float[] p) {
+    int ib = _nb1*((i2>>SHIFT)+_nb2*(i3>>SHIFT));
+    int k = index(0,i2,i3);
+    for (int b1=0,i1=0; b1<_nb1; ++b1,++ib,i1+=SIZE) {
+      Brick b = _bricks.get(ib);
+      int m1 = Math.min(SIZE,_n1-i1);
+      if (b==null) {
+        for (int j1=0; j1<m1; ++j1)
+          p[i1+j1] = 0.0f;
+      } else {
+        System.arraycopy(b.p,k,p,i1,m1);
+      }
+    }
+  }
+
+  /**
+   * Gets edge intersections for one row of samples.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @param e1 array[n1] of edge intersections in the 1st dimension.
+   * @param e2 array[n1] of edge intersections in the 2nd dimension.
+   * @param e3 array[n1] of edge intersections in the 3rd dimension.
+   */
+  void getEdgeRow(int i2, int i3, byte[] e1, byte[] e2, byte[] e3) {
+    int ib = _nb1*((i2>>SHIFT)+_nb2*(i3>>SHIFT));
+    int k = index(0,i2,i3);
+    for (int b1=0,i1=0; b1<_nb1; ++b1,++ib,i1+=SIZE) {
+      Brick b = _bricks.get(ib);
+      if (b==null) b = EMPTY;
+      int m1 = Math.min(SIZE,_n1-i1);
+      System.arraycopy(b.v1,k,e1,i1,m1);
+      System.arraycopy(b.v2,k,e2,i1,m1);
+      System.arraycopy(b.v3,k,e3,i1,m1);
+    }
+  }
+
+  /**
+   * Determines whether any brick containing a plane of samples is allocated.
+   * @param i3 index in 3rd dimension of the plane.
+   * @return true, if any brick is allocated; false, otherwise.
+   */
+  boolean hasBricks(int i3) {
+    int nb = _nb1*_nb2;
+    for (int ib=nb*(i3>>SHIFT),jb=ib+nb; ib<jb; ++ib) {
+      if (_bricks.get(ib)!=null)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Sets all paint values to zero, and removes all edge intersections.
+   * Only allocated bricks are visited.
+   */
+  void clear() {
+    int[] list = getList();
+    for (int il=0; il<list.length; ++il) {
+      if (_view!=null)
+        clearView(list[il]);
+      _bricks.set(list[il],null);
+    }
+    synchronized(_list) {
+      _list.clear();
+    }
+  }
+
+  /**
+   * Gets the number of allocated bricks.
+   * @return the number of allocated bricks.
+   */
+  int countBricks() {
+    synchronized(_list) {
+      return _list.n;
+    }
+  }
+
+  /**
+   * Gets the indices of all allocated bricks, in increasing order.
+   * @return array of brick indices.
+   */
+  int[] getBrickIndices() {
+    int[] list = getList();
+    Arrays.sort(list);
+    return list;
+  }
+
+  /**
+   * Gets the number of bytes in the record of an allocated brick.
+   * A record begins with one byte of flags. Paint values follow, as one
+   * value if all are the same, or as all values otherwise. Edge
+   * intersections follow, for each dimension in turn, unless there are
+   * none. Values are stored with samples in the 1st dimension varying
+   * fastest.
+   * @param ib the brick index.
+   * @return the number of bytes.
+   */
+  int getRecordSize(int ib) {
+    Brick b = _bricks.get(ib);
+    int flags = getFlags(b);
+    int size = 1;
+    size += ((flags&UNIFORM)!=0)?4:4*VOLUME;
+    size += ((flags&NO_EDGES)!=0)?0:3*VOLUME;
+    return size;
+  }
+
+  /**
+   * Puts the record of an allocated brick into a buffer.
+   * @param ib the brick index.
+   * @param bb the buffer.
+   */
+  void putRecord(int ib, ByteBuffer bb) {
+    Brick b = _bricks.get(ib);
+    int flags = getFlags(b);
+    bb.put((byte)flags);
+    if ((flags&UNIFORM)!=0) {
+      bb.putFloat(b.p[0]);
+    } else {
+      bb.asFloatBuffer().put(b.p);
+      bb.position(bb.position()+4*VOLUME);
+    }
+    if ((flags&NO_EDGES)==0) {
+      bb.put(b.v1);
+      bb.put(b.v2);
+      bb.put(b.v3);
+    }
+  }
+
+  /**
+   * Gets the record of a brick from a buffer, and stores the brick.
+   * Bricks may be gotten concurrently by multiple threads.
+   * @param ib the brick index.
+   * @param bb the buffer.
+   */
+  void getRecord(int ib, ByteBuffer bb) {
+    Brick b = get(ib);
+    int flags = bb.get();
+    if ((flags&UNIFORM)!=0) {
+      Arrays.fill(b.p,bb.getFloat());
+    } else {
+      bb.asFloatBuffer().get(b.p);
+      bb.position(bb.position()+4*VOLUME);
+    }
+    if ((flags&NO_EDGES)==0) {
+      bb.get(b.v1);
+      bb.get(b.v2);
+      bb.get(b.v3);
+    }
+    if (_view!=null)
+      copyBrick(ib,_view);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int MASK = SIZE-1;
+  private static final int VOLUME = SIZE*SIZE*SIZE;
+  private static final int UNIFORM = 1; // all paint values are the same
+  private static final int NO_EDGES = 2; // no edge intersections
+
+  /* Stamps for storage, so that bricks are written only by the storage
+   * that stamped them. Zero is the stamp of deserialized storage. */
+  private static final AtomicInteger STAMPS = new AtomicInteger();
+
+  /* Paint values and edge intersections for one brick of samples. */
+  private static class Brick implements Serializable {
+    private static final long serialVersionUID = 1L;
+    float[] p;
+    byte[] v1,v2,v3;
+    transient int stamp; // stamp of the storage that may write this brick
+    Brick(int stamp) {
+      this.stamp = stamp;
+      p = new float[VOLUME];
+      v1 = new byte[VOLUME];
+      v2 = new byte[VOLUME];
+      v3 = new byte[VOLUME];
+      Arrays.fill(v1,(byte)-1);
+      Arrays.fill(v2,(byte)-1);
+      Arrays.fill(v3,(byte)-1);
+    }
+    Brick(Brick b, int stamp) {
+      this.stamp = stamp;
+      p = b.p.clone();
+      v1 = b.v1.clone();
+      v2 = b.v2.clone();
+      v3 = b.v3.clone();
+    }
+  }
+
+  /* The shared empty brick, read for all unallocated bricks. */
+  private static final Brick EMPTY = new Brick(-1);
+
+  private int _n1,_n2,_n3;
+  private int _nb1,_nb2,_nb3;
+  private AtomicReferenceArray<Brick> _bricks; // null, if not allocated
+  private IntList _list; // indices of allocated bricks
+  private transient float[][][] _view; // dense paint values, if any
+  private transient int _stamp; // stamp of bricks this storage may write
+
+  /* Index of a sample within its brick. */
+  private static int index(int i1, int i2, int i3) {
+    return (i1&MASK)|((i2&MASK)<<SHIFT)|((i3&MASK)<<(2*SHIFT));
+  }
+
+  /* Index of the brick that contains a sample. */
+  private int brick(int i1, int i2, int i3) {
+    return (i1>>SHIFT)+_nb1*((i2>>SHIFT)+_nb2*(i3>>SHIFT));
+  }
+
+  /* Gets the brick for reading; the empty brick, if not allocated. */
+  private Brick get(int i1, int i2, int i3) {
+    Brick b = _bricks.get(brick(i1,i2,i3));
+    return (b!=null)?b:EMPTY;
+  }
+
+  /* Flags for the record of a brick. */
+  private static int getFlags(Brick b) {
+    int flags = UNIFORM|NO_EDGES;
+    float p = b.p[0];
+    for (int i=1; i<VOLUME && (flags&UNIFORM)!=0; ++i)
+      if (b.p[i]!=p) flags &= ~UNIFORM;
+    for (int i=0; i<VOLUME && (flags&NO_EDGES)!=0; ++i)
+      if (b.v1[i]!=-1 || b.v2[i]!=-1 || b.v3[i]!=-1) flags &= ~NO_EDGES;
+    return flags;
+  }
+
+  /* Gets a brick by index for writing, allocating it if necessary. */
+  private Brick get(int ib) {
+    int b3 = ib/(_nb1*_nb2);
+    int b2 = (ib/_nb1)%_nb2;
+    int b1 = ib%_nb1;
+    return get(b1<<SHIFT,b2<<SHIFT,b3<<SHIFT,true);
+  }
+
+  /* Gets the brick for writing; null, if not allocated and not needed.
+   * A brick that may be shared with a snapshot is first copied. */
+  private Brick get(int i1, int i2, int i3, boolean allocate) {
+    int ib = brick(i1,i2,i3);
+    Brick b = _bricks.get(ib);
+    if ((b==null)?allocate:b.stamp!=_stamp) {
+      Brick c = (b==null)?new Brick(_stamp):new Brick(b,_stamp);
+      if (_bricks.compareAndSet(ib,b,c)) {
+        if (b==null) {
+          synchronized(_list) {
+            _list.add(ib);
+          }
+        }
+        b = c;
+      } else {
+        b = _bricks.get(ib);
+      }
+    }
+    return b;
+  }
+
+  /* Copy of the indices of allocated bricks. */
+  private int[] getList() {
+    synchronized(_list) {
+      return _list.trim();
+    }
+  }
+
+  /* Copies the paint values of one brick into a dense array. */
+  private void copyBrick(int ib, float[][][] view) {
+    Brick b = _bricks.get(ib);
+    int i1 = (ib%_nb1)<<SHIFT;
+    int i2 = ((ib/_nb1)%_nb2)<<SHIFT;
+    int i3 = (ib/_nb1/_nb2)<<SHIFT;
+    int m1 = Math.min(SIZE,_n1-i1);
+    int m2 = Math.min(SIZE,_n2-i2);
+    int m3 = Math.min(SIZE,_n3-i3);
+    for (int j3=0; j3<m3; ++j3)
+      for (int j2=0; j2<m2; ++j2)
+        System.arraycopy(b.p,index(0,j2,j3),view[i3+j3][i2+j2],i1,m1);
+  }
+
+  /* Zeros the part of the attached dense array covered by one brick. */
+  private void clearView(int ib) {
+    int i1 = (ib%_nb1)<<SHIFT;
+    int i2 = ((ib/_nb1)%_nb2)<<SHIFT;
+    int i3 = (ib/_nb1/_nb2)<<SHIFT;
+    int m1 = Math.min(SIZE,_n1-i1);
+    int m2 = Math.min(SIZE,_n2-i2);
+    int m3 = Math.min(SIZE,_n3-i3);
+    for (int j3=0; j3<m3; ++j3)
+      for (int j2=0; j2<m2; ++j2)
+        Arrays.fill(_view[i3+j3][i2+j2],i1,i1+m1,0.0f);
+  }
+}
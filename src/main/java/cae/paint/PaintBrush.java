@@ -20,10 +20,17 @@ import static edu.mines.jtk.util.MathPlus.min;
  * This paintbrush paints voxels (3D pixels). Much like a 2D paintbrush, the
  * user must input the location and size of the brush. The cae.paint is then
  * guided by tensors by solving times using an eikonal equation.
+ * <p>
+ * A paintbrush may also be dragged along a stroke, a path of locations.
+ * Times from all locations in the stroke are then solved for together,
+ * in one solve, so that the cost of painting a stroke is not proportional
+ * to the number of locations in it. That solve is for the box that bounds
+ * the stroke, so long strokes should be set in short pieces, as in
+ * {@link Painting3#paintStroke}.
  * @author Chris Engelsma and Dave Hale, Colorado School of Mines
  * @version 2010.12.10
  */
-public class PaintBrush implements Painting3.DistanceMap {
+public class PaintBrush implements Painting3.StrokeMap {
   /**
    * Constructs a paintbrush.
    * @param n1 number of samples in 1st dimension (Z axis).
@@ -81,6 +88,7 @@ public class PaintBrush implements Painting3.DistanceMap {
    * @param k3 sample index in 3rd dimension.
    */
   public void setLocation(int k1, int k2, int k3) {
+    _stroke = false;
     if (_k1!=k1 || _k2!=k2 || _k3!=k3) {
       _k1 = k1;
       _k2 = k2;
@@ -89,6 +97,71 @@ public class PaintBrush implements Painting3.DistanceMap {
     }
   }
 
+  /**
+   * Sets the stroke along which this brush is dragged.
+   * Until a location is set, distances are those from the nearest 
+   * location in the stroke, and the location of this brush is the last 
+   * location in the stroke. Locations outside the image are ignored.
+   * Times are solved for in the box that bounds the stroke, extended by
+   * the half-width of this brush, so the cost grows with the volume of
+   * that box.
+   * @param k1 array of sample indices in 1st dimension.
+   * @param k2 array of sample indices in 2nd dimension.
+   * @param k3 array of sample indices in 3rd dimension.
+   */
+  public void setStroke(int[] k1, int[] k2, int[] k3) {
+
+    // Locations in the image, and the box that bounds them.
+    int ns = 0;
+    int[] s1 = new int[k1.length];
+    int[] s2 = new int[k2.length];
+    int[] s3 = new int[k3.length];
+    int a1 = _n1, a2 = _n2, a3 = _n3;
+    int b1 = -1, b2 = -1, b3 = -1;
+    for (int is=0; is<k1.length; ++is) {
+      if (k1[is]<0 || k1[is]>=_n1) continue;
+      if (k2[is]<0 || k2[is]>=_n2) continue;
+      if (k3[is]<0 || k3[is]>=_n3) continue;
+      s1[ns] = k1[is]; a1 = min(a1,s1[ns]); b1 = max(b1,s1[ns]);
+      s2[ns] = k2[is]; a2 = min(a2,s2[ns]); b2 = max(b2,s2[ns]);
+      s3[ns] = k3[is]; a3 = min(a3,s3[ns]); b3 = max(b3,s3[ns]);
+      ++ns;
+    }
+    _ns = ns;
+    _sdirty = true;
+    if (ns>0) setLocation(s1[ns-1],s2[ns-1],s3[ns-1]);
+    _stroke = true;
+    if (ns==0) return;
+
+    // Times are computed for a window of samples that extends beyond the
+    // box by the brush's half-width. The window is sized for this stroke;
+    // its time solver is reused only for later strokes with the same size,
+    // so that each solve resets and computes times for no more samples.
+    int m1 = b1-a1+1+2*_nh;
+    int m2 = b2-a2+1+2*_nh;
+    int m3 = b3-a3+1+2*_nh;
+    if (_sts==null || m1!=_sm1 || m2!=_sm2 || m3!=_sm3) {
+      _sm1 = m1;
+      _sm2 = m2;
+      _sm3 = m3;
+      _sbt = new BrushTensors3();
+      _sbt.window = true;
+      _sts = new TimeSolver3(_sm1,_sm2,_sm3,_sbt);
+      _sts.setMaxTime(2.0f*_tmax);
+    }
+    _sbt.j1 = a1-_nh;
+    _sbt.j2 = a2-_nh;
+    _sbt.j3 = a3-_nh;
+    _s1s = new int[ns];
+    _s2s = new int[ns];
+    _s3s = new int[ns];
+    for (int is=0; is<ns; ++is) {
+      _s1s[is] = s1[is]-_sbt.j1;
+      _s2s[is] = s2[is]-_sbt.j2;
+      _s3s[is] = s3[is]-_sbt.j3;
+    }
+  }
+
   /**
    * Gets the radius size of the paintbrush.
    * @return the radius of the bounding sphere of this paintbrush.
@@ -124,6 +197,8 @@ public class PaintBrush implements Painting3.DistanceMap {
       Sampling sb = new Sampling(nb,db,fb);
       _bt = new BrushTensors3();
       _ts = new TimeSolver3(nb,nb,nb,_bt);
+      _sts = null;
+      _sm1 = _sm2 = _sm3 = 0;
       _mc = new MarchingCubes(sb,sb,sb,_ts.getTimes());
       _mc.setSwap13(true);
       _nb = nb;
@@ -132,7 +207,9 @@ public class PaintBrush implements Painting3.DistanceMap {
 
     // Set maximum time for time solver, and note solution not valid.
     _ts.setMaxTime(2.0f*_tmax);
+    if (_sts!=null) _sts.setMaxTime(2.0f*_tmax);
     _dirty = true;
+    _sdirty = true;
   }
 
   /** 
@@ -160,13 +237,17 @@ public class PaintBrush implements Painting3.DistanceMap {
 
   /**
    * Gets the distance from any point (i1,i2,i3) to the origin of the brush.
-   * For an identity painting tensor, this is Euclidean distance.
+   * For an identity painting tensor, this is Euclidean distance. If a 
+   * stroke has been set, this is the distance to the nearest location in
+   * the stroke.
    * @param i1 sample index in 1st dimension.
    * @param i2 sample index in 2nd dimension.
    * @param i3 sample index in 3rd dimension.
    * @return the distance from (i1,i2,i3) to the brush's origin.
    */
   public float getDistance(int i1, int i2, int i3) {
+    if (_stroke) return getStrokeDistance(i1,i2,i3);
+
     int ii1 = i1-_k1+_nh;
     int ii2 = i2-_k2+_nh;
     int ii3 = i3-_k3+_nh;
@@ -184,12 +265,21 @@ public class PaintBrush implements Painting3.DistanceMap {
   ///////////////////////////////////////////////////////////////////////////
   // private
 
-  // Brush tensors are a subset of the painting tensors.
+  // Brush tensors are a subset of the painting tensors, for a window of
+  // samples beginning at (j1,j2,j3), or around the brush location if none.
   private class BrushTensors3 implements Tensors3 {
+    int j1,j2,j3;
+    boolean window;
     public void getTensor(int i1, int i2, int i3, float[] a) {
-      i1 = max(0,min(_n1-1,i1+_k1-_nh));
-      i2 = max(0,min(_n2-1,i2+_k2-_nh));
-      i3 = max(0,min(_n3-1,i3+_k3-_nh));
+      if (window) {
+        i1 = max(0,min(_n1-1,i1+j1));
+        i2 = max(0,min(_n2-1,i2+j2));
+        i3 = max(0,min(_n3-1,i3+j3));
+      } else {
+        i1 = max(0,min(_n1-1,i1+_k1-_nh));
+        i2 = max(0,min(_n2-1,i2+_k2-_nh));
+        i3 = max(0,min(_n3-1,i3+_k3-_nh));
+      }
       _pt.getTensor(i1,i2,i3,a);
     }
   }
@@ -205,6 +295,13 @@ public class PaintBrush implements Painting3.DistanceMap {
   private TimeSolver3 _ts;
   private boolean _dirty;
   private Contour _contour;
+  private boolean _stroke; // true, if distances are from a stroke
+  private boolean _sdirty; // true, if stroke times need to be recomputed
+  private int _ns; // number of stroke locations in the image
+  private int[] _s1s,_s2s,_s3s; // stroke locations in the stroke window
+  private int _sm1,_sm2,_sm3; // numbers of samples in the stroke window
+  private BrushTensors3 _sbt; // brush tensors for the stroke window
+  private TimeSolver3 _sts; // time solver for the stroke window
   private static final float INFINITY = Float.MAX_VALUE;
 
   // Debugging tool
@@ -220,4 +317,29 @@ public class PaintBrush implements Painting3.DistanceMap {
       _dirty = false;
     }
   }
+
+  // Called when times for a stroke need to be recomputed
+  private void invokeStrokeSolver() {
+    if (_sdirty) {
+      _sts.reset();
+      _sts.zeroAt(_s1s,_s2s,_s3s);
+      _sdirty = false;
+    }
+  }
+
+  // Gets the distance to the nearest location in the stroke
+  private float getStrokeDistance(int i1, int i2, int i3) {
+    if (_ns==0) return INFINITY;
+    int ii1 = i1-_sbt.j1;
+    int ii2 = i2-_sbt.j2;
+    int ii3 = i3-_sbt.j3;
+
+    if (ii1<0 || ii1>=_sm1) return INFINITY;
+    if (ii2<0 || ii2>=_sm2) return INFINITY;
+    if (ii3<0 || ii3>=_sm3) return INFINITY;
+
+    invokeStrokeSolver();
+
+    return _sts.getTimes()[ii3][ii2][ii1];
+  }
 }
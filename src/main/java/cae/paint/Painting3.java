@@ -12,7 +12,10 @@ import edu.mines.jtk.util.Parallel;
 import static edu.mines.jtk.util.ArrayMath.*;
 
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A 3D painting.
@@ -26,11 +29,15 @@ import java.util.HashMap;
  * v2[0][0][0] stores the edge intersection between (0,0,0) and (0,1,0),
  * and v3[0][0][0] stores the edge intersection between (0,0,0) and (1,0,0).
  * If no intersection exists, -1 is assigned.
+ * <p>
+ * Paint values and edge intersections are stored sparsely, in bricks of
+ * samples that are allocated only where the volume has been painted, so
+ * that the memory required is proportional to the painted region.
  * @author Chris Engelsma, Colorado School of Mines
  * @version 2010.12.10
  */
 public class Painting3 implements Serializable {
-  private static final long serialVersionUID = 1L;
+  private static final long serialVersionUID = 2L;
 
   /**
    * The concurrency of this process.
@@ -47,11 +54,13 @@ public class Painting3 implements Serializable {
    * @param n1 size of image in dimension 1.
    */
   public Painting3(int n1, int n2, int n3) {
-    this(new float[n3][n2][n1]);
+    this(new Sampling(n1),new Sampling(n2),new Sampling(n3));
   }
 
   /**
    * Constructs a new 3D Painting.
+   * Non-zero values of the image are painted voxels. The image remains
+   * attached to this painting, and is updated as voxels are painted.
    * @param paint a 3D image.
    */
   public Painting3(float[][][] paint) {
@@ -70,21 +79,21 @@ public class Painting3 implements Serializable {
   public Painting3(
     Sampling s1, Sampling s2, Sampling s3)
   {
-    this(s1,s2,s3,new float[s3.getCount()][s2.getCount()][s1.getCount()]);
+    this(s1,s2,s3,null);
   }
   
   /**
    * Constructs a new 3D Painting.
+   * Non-zero values of the image are painted voxels. The image remains
+   * attached to this painting, and is updated as voxels are painted.
    * @param s1 sampling in the 1st dimension.
    * @param s2 sampling in the 2nd dimension.
    * @param s3 sampling in the 3rd dimension.
-   * @param paint a 3D image.
+   * @param paint a 3D image; null, for none.
    */
   public Painting3(
     Sampling s1, Sampling s2, Sampling s3, float[][][] paint)
   {
-    _paint = paint;
-
     _n3 = s3.getCount();
     _n2 = s2.getCount();
     _n1 = s1.getCount();
@@ -97,11 +106,50 @@ public class Painting3 implements Serializable {
     _d2 = s2.getDelta();
     _d1 = s1.getDelta();
 
-    _v3 = new byte[_n3][_n2][_n1];
-    _v2 = new byte[_n3][_n2][_n1];
-    _v1 = new byte[_n3][_n2][_n1];
+    _bricks = new PaintBricks(_n1,_n2,_n3);
+    if (paint!=null) _bricks.attach(paint);
+    _dirty = new boolean[max(0,_n3-1)];
+    _changed = new boolean[max(0,_n3-1)];
+  }
+
+  /**
+   * Constructs a snapshot of a 3D painting.
+   */
+  private Painting3(Painting3 p) {
+    _n3 = p._n3; _n2 = p._n2; _n1 = p._n1;
+    _f3 = p._f3; _f2 = p._f2; _f1 = p._f1;
+    _d3 = p._d3; _d2 = p._d2; _d1 = p._d1;
+    _swap13 = p._swap13;
+    _concurrency = p._concurrency;
+    _version = p._version;
+    _bricks = p._bricks.snapshot();
+    _dirty = p._changed;
+    _changed = new boolean[_dirty.length];
+    p._changed = new boolean[_dirty.length];
+  }
+
+  /**
+   * Returns a snapshot of this painting.
+   * The snapshot has the voxels and edge intersections of this painting
+   * now; voxels painted later in either painting do not change the other.
+   * The cost of a snapshot is small, because bricks of painted voxels are
+   * shared, and copied only when painted again. A snapshot may therefore
+   * be taken after every brush stroke, and its contour extracted in
+   * another thread while painting continues in this one.
+   * @return the snapshot.
+   */
+  public Painting3 snapshot() {
+    return new Painting3(this);
+  }
 
-    initializeAllArrays(false);
+  /**
+   * Gets the version of this painting. The version is incremented each time
+   * voxels or edge intersections are changed. A snapshot has the version
+   * of the painting when the snapshot was taken.
+   * @return the version.
+   */
+  public long getVersion() {
+    return _version;
   }
 
   /**
@@ -119,6 +167,7 @@ public class Painting3 implements Serializable {
   {
     dm.setLocation(i1,i2,i3);
     markBorders(i3,i2,i1,v,d,dm,false);
+    ++_version;
   }
 
   /**
@@ -135,21 +184,95 @@ public class Painting3 implements Serializable {
   {
     dm.setLocation(i1,i2,i3);
     markBorders(i3,i2,i1,0,d,dm,true);
+    ++_version;
+  }
+
+  /**
+   * Paints the image along a brush stroke.
+   * The stroke is painted in pieces of consecutive locations that span
+   * no more than the width of the brush. Distances from all locations in
+   * a piece are set in the stroke map at once, and all voxels within the
+   * maximum distance of any location in the piece are painted together,
+   * so that the cost of each piece is that of one brush location with a
+   * map of distances at most twice as wide, and the cost of a stroke is
+   * proportional to its length. Locations outside the image are ignored.
+   * @param i1 array of indices in the 1st dimension.
+   * @param i2 array of indices in the 2nd dimension.
+   * @param i3 array of indices in the 3rd dimension.
+   * @param v the value to paint.
+   * @param d the maximum size.
+   * @param sm the stroke map.
+   */
+  public void paintStroke(
+    int[] i1, int[] i2, int[] i3,
+    float v, float d, Painting3.StrokeMap sm)
+  {
+    markStroke(i1,i2,i3,v,d,sm,false);
+    ++_version;
+  }
+
+  /**
+   * Erases paint from the image along a brush stroke.
+   * Locations outside the image are ignored.
+   * @param i1 array of indices in the 1st dimension.
+   * @param i2 array of indices in the 2nd dimension.
+   * @param i3 array of indices in the 3rd dimension.
+   * @param d the maximum size.
+   * @param sm the stroke map.
+   */
+  public void eraseStroke(
+    int[] i1, int[] i2, int[] i3,
+    float d, Painting3.StrokeMap sm)
+  {
+    markStroke(i1,i2,i3,0,d,sm,true);
+    ++_version;
   }
 
   /**
    * Sets all painted voxels to 0.
+   * The cost is proportional to the size of the painted region.
    */
   public void eraseAll() {
-    initializeAllArrays(true);
+    _bricks.clear();
+    _xlist = null;
+    _tlist = null;
+    markDirty(0,_n3-1);
+    ++_version;
   }
 
   /**
    * Returns the painted image.
+   * If no image is attached to this painting, the first call allocates one
+   * with all samples of the volume, and attaches it, so that it is updated
+   * as voxels are painted.
    * @return the painted image.
    */
   public float[][][] getPaint() {
-    return _paint;
+    return _bricks.getDense();
+  }
+
+  /**
+   * Gets the sampling in the 1st dimension.
+   * @return the sampling.
+   */
+  public Sampling getSampling1() {
+    return new Sampling(_n1,_d1,_f1);
+  }
+
+  /**
+   * Gets the sampling in the 2nd dimension.
+   * @return the sampling.
+   */
+  public Sampling getSampling2() {
+    return new Sampling(_n2,_d2,_f2);
+  }
+
+  /**
+   * Gets the sampling in the 3rd dimension.
+   * @return the sampling.
+   */
+  public Sampling getSampling3() {
+    return new Sampling(_n3,_d3,_f3);
   }
 
   /**
@@ -170,6 +293,11 @@ public class Painting3 implements Serializable {
 
   /**
    * Gets the 3D contour of painted voxels.
+   * Vertices and triangles for each slab of cubes are retained for the
+   * most recent contour value. If the value is the same as for the
+   * previous contour, only slabs with voxels painted or erased since then
+   * are marched again, so that the cost of marching is proportional to
+   * the size of brush strokes.
    * @param c the contour value.
    * @return the 3D contour of painted voxels.
    */
@@ -177,66 +305,47 @@ public class Painting3 implements Serializable {
 
     // Run marching cubes.
     initiateMarch(c);
+    return makeContour(_xlist,_tlist);
+  }
 
-    int xlen = 0,tlen = 0,stlen = 0;
-    for (int i=0; i<_n3; ++i) {
-      if (_xlist[i]!=null) xlen+=_xlist[i].n;
-      if (_tlist[i]!=null) tlen+=_tlist[i].n;
-      if (_stlist[i]!=null) stlen+=_stlist[i].n;
-    }
-
-    /* Because the marching cubes algorithm can be run in parallel, 
-     * the resulting list of vertices needs to be concatenated. This is
-     * currently run in serial, and is a bottleneck. Ideally, this should
-     * be parallelized.
-     */
-    Contour contour = new Contour();
-    contour.x = new float[xlen];
-    contour.i = new int[tlen];
-    int[] slist = new int[stlen];
-    int xn = 0,tn = 0,stn = 0;
-    for (int i=0; i<_n3; ++i) {
-      if (_xlist[i]!=null) {
-        System.arraycopy(_xlist[i].trim(),0,contour.x,xn,_xlist[i].n);
-        xn+=_xlist[i].n;
-      }
-      if (_tlist[i]!=null) {
-        System.arraycopy(_tlist[i].trim(),0,contour.i,tn,_tlist[i].n);
-        tn+=_tlist[i].n;
-      }
-      if (_stlist[i]!=null) {
-        int sn = _stlist[i].n;
-        System.arraycopy(_stlist[i].trim(),0,slist,stn,sn);
-        stn+=sn;
-      }
-    }
-
-    HashMap<Integer,Integer> hm = new HashMap<Integer,Integer>();
-    int key,value = 0;
-    for (int i=0; i<stn; ++i) {
-      key = slist[i];
-      if (!hm.containsKey(key)) {
-        hm.put(key,value++);
-      }
-    }
-    
-    for (int i=0; i<tlen; ++i) {
-      key = contour.i[i];
-      contour.i[i] = hm.get(key);
+  /**
+   * Gets 3D contours for all values of painted voxels.
+   * All contours are extracted in a single march through the painting, in
+   * which each slab of cubes is marched only for the values painted in
+   * that slab. Slabs without painted voxels are skipped.
+   * @return map from painted values (in increasing order) to contours.
+   */
+  public Map<Float,Contour> getContours() {
+    final int ns = max(0,_n3-1);
+    final ConcurrentHashMap<Float,SlabLists> lists =
+      new ConcurrentHashMap<Float,SlabLists>();
+    if (_concurrency==Concurrency.PARALLEL) {
+      final Parallel.Unsafe<EdgeCache> caches =
+        new Parallel.Unsafe<EdgeCache>();
+      Parallel.loop(ns,new Parallel.LoopInt() {
+        public void compute(int i3) {
+          EdgeCache cache = caches.get();
+          if (cache==null) caches.set(cache=new EdgeCache());
+          marchLabels(i3,ns,cache,lists);
+        }
+      });
+    } else {
+      EdgeCache cache = new EdgeCache();
+      for (int i3=0; i3<ns; ++i3)
+        marchLabels(i3,ns,cache,lists);
     }
-
-    // Swap the 1st and 3rd dimension if necessary.
-    if (_swap13) {
-      float[] x = contour.x;
-      float[] u = contour.u;
-      for (int i=x.length-3; i>=0; i-=3) {
-        float x1 = x[i  ];
-        float x3 = x[i+2];
-        x[i  ] = x3;
-        x[i+2] = x1;
+    Map<Float,Contour> contours = new TreeMap<Float,Contour>();
+    for (Map.Entry<Float,SlabLists> e:lists.entrySet()) {
+      SlabLists sl = e.getValue();
+      for (int i3=0; i3<ns; ++i3) {
+        if (sl.x[i3]==null) {
+          sl.x[i3] = new FloatList();
+          sl.t[i3] = new IntList();
+        }
       }
+      contours.put(e.getKey(),makeContour(sl.x,sl.t));
     }
-    return contour;
+    return contours;
   }
 
   /**
@@ -253,9 +362,9 @@ public class Painting3 implements Serializable {
     if (i2<0) i2 = 0; if (i2>_n2-1) i2 = _n2-1;
     if (i3<0) i3 = 0; if (i3>_n3-1) i3 = _n3-1;
     byte[] e = new byte[3];
-    e[0] = _v1[i3][i2][i1];
-    e[1] = _v2[i3][i2][i1];
-    e[2] = _v3[i3][i2][i1];
+    e[0] = _bricks.getEdge1(i1,i2,i3);
+    e[1] = _bricks.getEdge2(i1,i2,i3);
+    e[2] = _bricks.getEdge3(i1,i2,i3);
     return e;
   }
 
@@ -269,7 +378,9 @@ public class Painting3 implements Serializable {
    */
   public void setEdgeIntersection1At(int i1, int i2, int i3, byte v) {
     v = (byte)max(-1,min(100,v));
-    _v1[i3][i2][i1] = v;
+    _bricks.setEdge1(i1,i2,i3,v);
+    markDirty(i3,i3);
+    ++_version;
   }
 
   /**
@@ -282,7 +393,9 @@ public class Painting3 implements Serializable {
    */
   public void setEdgeIntersection2At(int i1, int i2, int i3, byte v) {
     v = (byte)max(-1,min(100,v));
-    _v2[i3][i2][i1] = v;
+    _bricks.setEdge2(i1,i2,i3,v);
+    markDirty(i3,i3);
+    ++_version;
   }
 
   /**
@@ -295,7 +408,9 @@ public class Painting3 implements Serializable {
    */
   public void setEdgeIntersection3At(int i1, int i2, int i3, byte v) {
     v = (byte)max(-1,min(100,v));
-    _v3[i3][i2][i1] = v;
+    _bricks.setEdge3(i1,i2,i3,v);
+    markDirty(i3,i3);
+    ++_version;
   }
   
   ///////////////////////////////////////////////////////////////////////////
@@ -337,35 +452,86 @@ public class Painting3 implements Serializable {
     }
   }
   
+  /* Indices of vertices on the edges of one slab of cubes. Edges in the
+   * bottom plane (ix0,ix1) and edges between the two planes (ix2) are
+   * owned by the slab. Edges in the top plane (jx0,jx1) are owned by the
+   * next slab, which numbers them first, in the same order; so here they
+   * are stored as -1-k, where k is the vertex index in that next slab.
+   */
+  private class EdgeCache {
+    int[][] ix0 = new int[_n2][_n1];
+    int[][] ix1 = new int[_n2][_n1];
+    int[][] ix2 = new int[_n2][_n1];
+    int[][] jx0 = new int[_n2][_n1];
+    int[][] jx1 = new int[_n2][_n1];
+    float[][] p0 = new float[_n2][_n1]; // isolated values in bottom plane
+    float[][] p1 = new float[_n2][_n1]; // isolated values in top plane
+    float[][] q0 = new float[_n2][_n1]; // all values in bottom plane
+    float[][] q1 = new float[_n2][_n1]; // all values in top plane
+  }
+
+  /* Vertices and triangles in all slabs for one contour value. */
+  private class SlabLists {
+    FloatList[] x;
+    IntList[] t;
+    SlabLists(int ns) {
+      x = new FloatList[ns];
+      t = new IntList[ns];
+    }
+  }
+  
   private int _n3,_n2,_n1;
   private double _f3,_f2,_f1;
   private double _d3,_d2,_d1;
 
-  private FloatList[] _xlist; // List of vertices.
-  private IntList[] _tlist;   // List of triangle indices.
-  private IntList[] _stlist;  // List of ordered triangle indices.
+  private transient FloatList[] _xlist; // List of vertices.
+  private transient IntList[] _tlist;   // List of triangle indices.
+  private float _clast = Float.NaN; // contour value for retained lists
+  private boolean[] _dirty; // slabs changed since lists were made
+  private boolean[] _changed; // slabs changed since the last snapshot
+  private long _version; // incremented with every change
+  private transient volatile boolean _cancelled; // stop marching?
+  private transient DistanceWindow _window; // distances around the brush
   
-  private float[][][] _paint;
-  private int[][][] _ix0;
-  private int[][][] _ix1;
-  private int[][][] _ix2;
-  private byte[][][] _v3; // edge in dimension 3
-  private byte[][][] _v2; // edge in dimension 2
-  private byte[][][] _v1; // edge in dimension 1
+  private PaintBricks _bricks; // paint values and edge intersections
 
   private boolean _swap13 = true; // Swap the 1st and 3rd dimensions?
 
 //  private Concurrency _concurrency = Concurrency.PARALLEL;
   private Concurrency _concurrency = Concurrency.PARALLEL;
 
+  /**
+   * A map of distances from the location of a brush.
+   * Distances may be gotten concurrently by multiple threads, after the
+   * location has been set.
+   */
   public interface DistanceMap {
     float getDistance(int i1, int i2, int i3);
     void setLocation(int i1, int i2, int i3);
     int getSize();
   }
 
+  /**
+   * A map of distances from the nearest of several locations of a brush
+   * that form a stroke, such as the path of a brush dragged through the
+   * image. The size is that of the brush at any one location.
+   */
+  public interface StrokeMap extends DistanceMap {
+    void setStroke(int[] i1, int[] i2, int[] i3);
+  }
+
   /**
    * Marks the borders of the painted area.
+   * Distances are fetched once for each sample in a window around the
+   * brush location. Samples can be painted, or have intersected edges,
+   * only in the box that bounds samples within the maximum distance, and
+   * the samples just before that box; elsewhere, edges between samples
+   * with equal paint values are only cleared. Edge intersections are
+   * computed from paint values before any sample is painted, and then
+   * samples are painted, so that planes of samples may be processed in
+   * parallel, with the same result as for painting and marking samples
+   * one at a time. Paint values and edge intersections are read a row at
+   * a time, and written only where changed.
    */
   private void markBorders(
     int ii3, int ii2, int ii1,
@@ -384,156 +550,451 @@ public class Painting3 implements Serializable {
     int j1 = max(0,min(_n1,ii1+nh));
     int j2 = max(0,min(_n2,ii2+nh));
     int j3 = max(0,min(_n3,ii3+nh));
+    markBorders(ii3,ii2,ii1,k1,k2,k3,j1,j2,j3,v,dmax,dm,erasing);
+  }
 
-    // Compute on a subcube
-    for (int i3=k3; i3<j3; ++i3) {
-      for (int i2=k2; i2<j2; ++i2) {
-        for (int i1=k1; i1<j1; ++i1) {
-
-          /* Get distances for this sample and the succeeding samples in the
-           * 1st, 2nd and 3rd dimensions.
-           */
-          float d0 = dm.getDistance(i1,i2,i3);
-          float d1 = (i1!=_n1-1)?dm.getDistance(i1+1,i2  ,i3  ):d0;
-          float d2 = (i2!=_n2-1)?dm.getDistance(i1  ,i2+1,i3  ):d0;
-          float d3 = (i3!=_n3-1)?dm.getDistance(i1  ,i2  ,i3+1):d0;
-
-          /* If this sample is within the painted area, cae.paint it. */
-          if (d0<=dmax) {
-            if(!erasing) _paint[i3][i2][i1] = v;
-            else         _paint[i3][i2][i1] = 0.0f;
-          }
+  /**
+   * Marks the borders of the area painted along a stroke, one piece at a
+   * time. Each piece is the longest run of consecutive locations in the
+   * image that fits in a box no wider than the brush.
+   */
+  private void markStroke(
+    int[] i1, int[] i2, int[] i3,
+    float v, float dmax, Painting3.StrokeMap sm,
+    boolean erasing)
+  {
+    int nh = sm.getSize();
+    int np = 0;
+    int[] p1 = new int[i1.length];
+    int[] p2 = new int[i2.length];
+    int[] p3 = new int[i3.length];
+    int a1 = 0, a2 = 0, a3 = 0;
+    int b1 = 0, b2 = 0, b3 = 0;
+    for (int ip=0; ip<i1.length; ++ip) {
+      if (i3[ip]<0 || i2[ip]<0 || i1[ip]<0) continue;
+      if (i3[ip]>_n3-1 || i2[ip]>_n2-1 || i1[ip]>_n1-1) continue;
+      if (np>0 &&
+          (max(b1,i1[ip])-min(a1,i1[ip])>2*nh ||
+           max(b2,i2[ip])-min(a2,i2[ip])>2*nh ||
+           max(b3,i3[ip])-min(a3,i3[ip])>2*nh)) {
+        markStrokePiece(np,p1,p2,p3,v,dmax,sm,erasing);
+        np = 0;
+      }
+      if (np==0) {
+        a1 = b1 = i1[ip];
+        a2 = b2 = i2[ip];
+        a3 = b3 = i3[ip];
+      }
+      a1 = min(a1,i1[ip]); b1 = max(b1,i1[ip]); p1[np] = i1[ip];
+      a2 = min(a2,i2[ip]); b2 = max(b2,i2[ip]); p2[np] = i2[ip];
+      a3 = min(a3,i3[ip]); b3 = max(b3,i3[ip]); p3[np] = i3[ip];
+      ++np;
+    }
+    if (np>0)
+      markStrokePiece(np,p1,p2,p3,v,dmax,sm,erasing);
+  }
 
-          /* Find edges that intersect and compute that intersection's
-           * percent-distance [0,100] using linear interpolation.
-           *
-           * Conditions are as follows for edge assignment:
-           * Assuming we have an edge, we have four possible scenarios:
-           *
-           * o----------------o : No painted value.
-           *                      Do nothing.
-           *
-           * o-----x----------o : First time being painted.
-           *                      Assign the edge value.
-           *
-           * o-----x----X-----o : Repaint, shifting value up.
-           *       ----->         Check if the seed is painted.
-           *                      If true, accept the new value.
-           *
-           * o-----X----x-----o : Repaint, shifting value down.
-           *       <-----         Check if the seed is painted.
-           *                      If true, do nothing.
-           */
-          byte v0,nv;
-          float p  = _paint[i3  ][i2  ][i1  ];
-
-          if (i1!=_n1-1) {
-            float p1 = _paint[i3  ][i2  ][i1+1];
-            if (intersectsEdge(dmax,d0,d1)) {
-              v0 = _v1[i3][i2][i1];
-              nv = (byte)min(100.0f,max(0.0f,(dmax-d0)/(d1-d0)*100));
-              if (v0==-1) _v1[i3][i2][i1] = nv;
-              else {
-                if ((nv>v0 && p!=0.0f) || (nv<v0 && p==0.0f))
-                  _v1[i3][i2][i1] = nv;
-              }
-            } else {
-              if (p==p1) _v1[i3][i2][i1] = -1;
-            }
-          }
+  /**
+   * Marks the borders of the area painted along one piece of a stroke,
+   * with np locations in the image, in a subcube that bounds the subcubes
+   * around all of those locations.
+   */
+  private void markStrokePiece(
+    int np, int[] p1, int[] p2, int[] p3,
+    float v, float dmax, Painting3.StrokeMap sm,
+    boolean erasing)
+  {
+    sm.setStroke(copy(np,p1),copy(np,p2),copy(np,p3));
+    int nh = sm.getSize();
+    int k1 = _n1, k2 = _n2, k3 = _n3;
+    int j1 = 0, j2 = 0, j3 = 0;
+    for (int ip=0; ip<np; ++ip) {
+      k1 = min(k1,max(0,p1[ip]-nh)); j1 = max(j1,min(_n1,p1[ip]+nh));
+      k2 = min(k2,max(0,p2[ip]-nh)); j2 = max(j2,min(_n2,p2[ip]+nh));
+      k3 = min(k3,max(0,p3[ip]-nh)); j3 = max(j3,min(_n3,p3[ip]+nh));
+    }
+    markBorders(p3[0],p2[0],p1[0],k1,k2,k3,j1,j2,j3,v,dmax,sm,erasing);
+  }
 
-          if (i2!=_n2-1) {
-            float p2 = _paint[i3  ][i2+1][i1  ];
-            if (intersectsEdge(dmax,d0,d2)) {
-              v0 = _v2[i3][i2][i1];
-              nv = (byte)min(100.0f,max(0.0f,(dmax-d0)/(d2-d0)*100));
-              if (v0==-1) _v2[i3][i2][i1] = nv;
-              else {
-                if ((nv>v0 && p!=0.0f) || (nv<v0 && p==0.0f))
-                  _v2[i3][i2][i1] = nv;
-              }
-            } else {
-              if (p==p2) _v2[i3][i2][i1] = -1;
-            }
+  /**
+   * Marks the borders of the painted area in the subcube of samples k to
+   * j-1, for distances from a brush that includes the sample ii.
+   */
+  private void markBorders(
+    int ii3, int ii2, int ii1,
+    int k1, int k2, int k3, int j1, int j2, int j3,
+    float v, float dmax, Painting3.DistanceMap dm,
+    boolean erasing)
+  {
+    markDirty(k3,j3-1);
+    if (k1>=j1 || k2>=j2 || k3>=j3) return;
+
+    // Distances for samples in the subcube and the samples just after it.
+    // The first distance is fetched alone, so that a distance map that
+    // computes distances when first needed does so in this thread.
+    dm.getDistance(ii1,ii2,ii3);
+    if (_window==null) _window = new DistanceWindow();
+    DistanceWindow w = _window;
+    w.fetch(dm,dmax,k1,k2,k3,min(j1,_n1-1),min(j2,_n2-1),min(j3,_n3-1));
+
+    // Box of samples that may be painted or have intersected edges.
+    final int a1 = max(k1,w.a1-1), b1 = min(j1-1,w.b1);
+    final int a2 = max(k2,w.a2-1), b2 = min(j2-1,w.b2);
+    final int a3 = max(k3,w.a3-1), b3 = min(j3-1,w.b3);
+
+    // Compute on a subcube, first edges and then paint, a row at a time.
+    final DistanceWindow fw = w;
+    final float fv = erasing?0.0f:v;
+    final float fdmax = dmax;
+    final int fk1 = k1, fk2 = k2, fj1 = j1, fj2 = j2;
+    final Parallel.Unsafe<RowBuffer> rows = new Parallel.Unsafe<RowBuffer>();
+    loop(k3,j3,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        RowBuffer rb = rows.get();
+        if (rb==null) rows.set(rb=new RowBuffer());
+        boolean in3 = a3<=i3 && i3<=b3;
+        for (int i2=fk2; i2<fj2; ++i2) {
+          boolean in2 = in3 && a2<=i2 && i2<=b2;
+          markRow(i2,i3,fk1,fj1,in2?a1:fj1,in2?b1:fk1-1,fv,fdmax,fw,rb);
+        }
+      }
+    });
+    loop(a3,b3+1,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        RowBuffer rb = rows.get();
+        if (rb==null) rows.set(rb=new RowBuffer());
+        float[] p = rb.p0;
+        for (int i2=a2; i2<=b2; ++i2) {
+          _bricks.getRow(i2,i3,p);
+          for (int i1=a1; i1<=b1; ++i1) {
+
+            /* If this sample is within the painted area, cae.paint it. */
+            if (fw.get(i1,i2,i3)<=fdmax && p[i1]!=fv)
+              _bricks.setPaint(i1,i2,i3,fv);
           }
+        }
+      }
+    });
+  }
 
-          if (i3!=_n3-1) {
-            float p3 = _paint[i3+1][i2  ][i1  ];
-            if (intersectsEdge(dmax,d0,d3)) {
-              v0 = _v3[i3][i2][i1];
-              nv = (byte)min(100.0f,max(0.0f,(dmax-d0)/(d3-d0)*100));
-              if (v0==-1) _v3[i3][i2][i1] = nv;
-              else {
-                if ((nv>v0 && p!=0.0f) || (nv<v0 && p==0.0f))
-                  _v3[i3][i2][i1] = nv;
-              }
-            } else {
-              if (p==p3) _v3[i3][i2][i1] = -1;
-            }
+  /* Paint values and edge intersections for rows of samples. */
+  private class RowBuffer {
+    float[] p0 = new float[_n1]; // paint values in this row
+    float[] p2 = new float[_n1]; // paint values in next row in 2nd dim
+    float[] p3 = new float[_n1]; // paint values in next row in 3rd dim
+    byte[] e1 = new byte[_n1]; // edge intersections in 1st dimension
+    byte[] e2 = new byte[_n1]; // edge intersections in 2nd dimension
+    byte[] e3 = new byte[_n1]; // edge intersections in 3rd dimension
+  }
+
+  /**
+   * Marks edges from samples k1 to j1-1 in one row. Samples c1 to e1 may
+   * be painted with value v; edges from other samples are only cleared.
+   */
+  private void markRow(
+    int i2, int i3, int k1, int j1, int c1, int e1,
+    float v, float dmax, DistanceWindow w, RowBuffer rb)
+  {
+    float[] p0 = rb.p0, p2 = rb.p2, p3 = rb.p3;
+    byte[] v1 = rb.e1, v2 = rb.e2, v3 = rb.e3;
+    float[] d = w.d;
+    int m1 = w.m1, m12 = w.m1*w.m2;
+    int jd = w.index(k1,i2,i3)-k1;
+    _bricks.getRow(i2,i3,p0);
+    if (i2!=_n2-1) _bricks.getRow(i2+1,i3,p2);
+    if (i3!=_n3-1) _bricks.getRow(i2,i3+1,p3);
+    _bricks.getEdgeRow(i2,i3,v1,v2,v3);
+    for (int i1=k1; i1<j1; ++i1) {
+      if (i1<c1 || i1>e1) {
+        float p = p0[i1];
+        if (i1!=_n1-1 && p==p0[i1+1] && v1[i1]!=-1)
+          _bricks.setEdge1(i1,i2,i3,(byte)-1);
+        if (i2!=_n2-1 && p==p2[i1] && v2[i1]!=-1)
+          _bricks.setEdge2(i1,i2,i3,(byte)-1);
+        if (i3!=_n3-1 && p==p3[i1] && v3[i1]!=-1)
+          _bricks.setEdge3(i1,i2,i3,(byte)-1);
+        continue;
+      }
+
+      /* Get distances for this sample and the succeeding samples in the
+       * 1st, 2nd and 3rd dimensions.
+       */
+      int j = jd+i1;
+      float d0 = d[j];
+      float d1 = (i1!=_n1-1)?d[j+1  ]:d0;
+      float d2 = (i2!=_n2-1)?d[j+m1 ]:d0;
+      float d3 = (i3!=_n3-1)?d[j+m12]:d0;
+
+      /* Find edges that intersect and compute that intersection's
+       * percent-distance [0,100] using linear interpolation. The paint
+       * value of this sample is that after painting, and those of the
+       * succeeding samples are those before painting.
+       *
+       * Conditions are as follows for edge assignment:
+       * Assuming we have an edge, we have four possible scenarios:
+       *
+       * o----------------o : No painted value.
+       *                      Do nothing.
+       *
+       * o-----x----------o : First time being painted.
+       *                      Assign the edge value.
+       *
+       * o-----x----X-----o : Repaint, shifting value up.
+       *       ----->         Check if the seed is painted.
+       *                      If true, accept the new value.
+       *
+       * o-----X----x-----o : Repaint, shifting value down.
+       *       <-----         Check if the seed is painted.
+       *                      If true, do nothing.
+       */
+      byte v0,nv;
+      float p = (d0<=dmax)?v:p0[i1];
+
+      if (i1!=_n1-1) {
+        v0 = v1[i1];
+        nv = markEdge(dmax,d0,d1,p,p0[i1+1],v0);
+        if (nv!=v0) _bricks.setEdge1(i1,i2,i3,nv);
+      }
+
+      if (i2!=_n2-1) {
+        v0 = v2[i1];
+        nv = markEdge(dmax,d0,d2,p,p2[i1],v0);
+        if (nv!=v0) _bricks.setEdge2(i1,i2,i3,nv);
+      }
+
+      if (i3!=_n3-1) {
+        v0 = v3[i1];
+        nv = markEdge(dmax,d0,d3,p,p3[i1],v0);
+        if (nv!=v0) _bricks.setEdge3(i1,i2,i3,nv);
+      }
+    }
+  }
+
+  /**
+   * Returns the new edge intersection for an edge from a sample with
+   * distance d0 and paint value p to a sample with distance dk and paint
+   * value pk, for the current edge intersection v0.
+   */
+  private static byte markEdge(
+    float dmax, float d0, float dk, float p, float pk, byte v0)
+  {
+    if (intersectsEdge(dmax,d0,dk)) {
+      byte nv = (byte)min(100.0f,max(0.0f,(dmax-d0)/(dk-d0)*100));
+      if (v0==-1) return nv;
+      if ((nv>v0 && p!=0.0f) || (nv<v0 && p==0.0f)) return nv;
+      return v0;
+    } else {
+      return (p==pk)?-1:v0;
+    }
+  }
+
+  /* Distances for a window of samples, reused for all brush strokes. */
+  private class DistanceWindow {
+    int k1,k2,k3; // first sample in window
+    int m1,m2,m3; // numbers of samples in window
+    int a1,a2,a3; // first sample within the maximum distance
+    int b1,b2,b3; // last sample within the maximum distance
+    float[] d = new float[0]; // distances, 1st dimension fastest
+    int[][] ab = new int[0][]; // bounds for each plane
+
+    /* Fetches distances for samples k to j in parallel, and computes
+     * bounds of samples within the maximum distance. */
+    void fetch(
+      DistanceMap dm, float dmax,
+      int k1, int k2, int k3, int j1, int j2, int j3)
+    {
+      this.k1 = k1; this.m1 = j1-k1+1;
+      this.k2 = k2; this.m2 = j2-k2+1;
+      this.k3 = k3; this.m3 = j3-k3+1;
+      if (d.length<m1*m2*m3) d = new float[m1*m2*m3];
+      if (ab.length<m3) ab = new int[m3][6];
+      final DistanceMap fdm = dm;
+      final float fdmax = dmax;
+      loop(0,m3,new Parallel.LoopInt() {
+        public void compute(int j3) {
+          fetchPlane(fdm,fdmax,j3);
+        }
+      });
+      a1 = a2 = a3 = Integer.MAX_VALUE;
+      b1 = b2 = b3 = Integer.MIN_VALUE;
+      for (int j=0; j<m3; ++j) {
+        int[] abj = ab[j];
+        if (abj[0]<=abj[3]) {
+          a1 = min(a1,abj[0]); a2 = min(a2,abj[1]); a3 = min(a3,abj[2]);
+          b1 = max(b1,abj[3]); b2 = max(b2,abj[4]); b3 = max(b3,abj[5]);
+        }
+      }
+    }
+
+    /* Fetches distances for one plane of samples. */
+    void fetchPlane(DistanceMap dm, float dmax, int j3) {
+      int i3 = k3+j3;
+      int a1 = Integer.MAX_VALUE, a2 = Integer.MAX_VALUE;
+      int b1 = Integer.MIN_VALUE, b2 = Integer.MIN_VALUE;
+      for (int j2=0,j=j3*m1*m2; j2<m2; ++j2) {
+        int i2 = k2+j2;
+        int c1 = Integer.MAX_VALUE, e1 = Integer.MIN_VALUE;
+        for (int i1=k1; i1<k1+m1; ++i1,++j) {
+          float dj = d[j] = dm.getDistance(i1,i2,i3);
+          if (dj<=dmax) {
+            if (c1>i1) c1 = i1;
+            e1 = i1;
           }
         }
+        if (c1<=e1) {
+          a1 = min(a1,c1); b1 = max(b1,e1);
+          if (a2>i2) a2 = i2;
+          b2 = i2;
+        }
       }
+      int[] abj = ab[j3];
+      abj[0] = a1; abj[1] = a2; abj[2] = (a1<=b1)?i3:Integer.MAX_VALUE;
+      abj[3] = b1; abj[4] = b2; abj[5] = (a1<=b1)?i3:Integer.MIN_VALUE;
+    }
+
+    /* Gets the distance for a sample in the window. */
+    float get(int i1, int i2, int i3) {
+      return d[index(i1,i2,i3)];
+    }
+
+    /* Gets the index of the distance for a sample in the window. */
+    int index(int i1, int i2, int i3) {
+      return (i1-k1)+m1*((i2-k2)+m2*(i3-k3));
+    }
+  }
+
+  /**
+   * Loops over indices in parallel, or not, depending on concurrency.
+   */
+  private void loop(int begin, int end, Parallel.LoopInt body) {
+    if (_concurrency==Concurrency.PARALLEL && begin<end-1) {
+      Parallel.loop(begin,end,body);
+    } else {
+      for (int i=begin; i<end; ++i)
+        body.compute(i);
     }
   }
 
   /**
    * Determines whether an edge is intersected from this sample.
    */
-  private boolean intersectsEdge(float dmax, float d0, float d1) {
+  private static boolean intersectsEdge(float dmax, float d0, float d1) {
     if (d0-dmax<0 && d1-dmax>=0) return true;
     if (d0-dmax>0 && d1-dmax<=0) return true;
     return false;
   }
 
   /**
-   * Extracts a painted contour value in order to render in 3D.
+   * Gets the paint values in one plane of samples.
    */
-  private float[][][] isolateContourValue(float c) {
-    final float val = c;
-    final float[][][] array = new float[_n3][_n2][_n1];
-    Parallel.loop(_n3-1,new Parallel.LoopInt() {
-      public void compute(int i3) {
-        isolateSlab(i3,val,array);
+  private void loadPlane(int i3, float[][] q) {
+    for (int i2=0; i2<_n2; ++i2)
+      _bricks.getRow(i2,i3,q[i2]);
+  }
+
+  /**
+   * Extracts a painted contour value from one plane of paint values q.
+   * Samples painted with the contour value keep that value, and all others
+   * are set to zero, as are samples in the last row, column and plane.
+   * The arrays q and p may be the same array.
+   */
+  private void isolatePlane(int i3, float c, float[][] q, float[][] p) {
+    for (int i2=0; i2<_n2; ++i2) {
+      float[] qi2 = q[i2];
+      float[] pi2 = p[i2];
+      if (i3<_n3-1 && i2<_n2-1) {
+        for (int i1=0; i1<_n1-1; ++i1)
+          pi2[i1] = (qi2[i1]==c)?c:0.0f;
+        pi2[_n1-1] = 0.0f;
+      } else {
+        for (int i1=0; i1<_n1; ++i1)
+          pi2[i1] = 0.0f;
       }
-    });
+    }
+  }
+
+  /**
+   * Gets the storage of paint values and edge intersections.
+   */
+  PaintBricks getBricks() {
+    return _bricks;
+  }
+
+  /**
+   * Marks as changed all slabs with cubes that have corners in planes of
+   * samples with indices k3 to j3.
+   */
+  private void markDirty(int k3, int j3) {
+    for (int i3=max(0,k3-1); i3<=min(_n3-2,j3); ++i3) {
+      _dirty[i3] = true;
+      _changed[i3] = true;
+    }
+  }
+
+  /**
+   * Takes the vertices and triangles retained by a previous snapshot of
+   * the same painting, so that this snapshot need march only the slabs
+   * changed since then, or not yet marched by that snapshot.
+   */
+  void inherit(Painting3 p) {
+    if (p==null || p._xlist==null) return;
+    _xlist = p._xlist;
+    _tlist = p._tlist;
+    _clast = p._clast;
+    addChanges(p);
+    p._xlist = null;
+    p._tlist = null;
+  }
 
-    return array;
+  /**
+   * Marks as changed all slabs changed in a previous snapshot of the same
+   * painting that was never marched.
+   */
+  void addChanges(Painting3 p) {
+    for (int i3=0; i3<_dirty.length; ++i3)
+      _dirty[i3] |= p._dirty[i3];
   }
 
   /**
-   * Extracts a single slab (used for parallel concurrency).
+   * Cancels marching of this snapshot, which may be in progress in another
+   * thread. A cancelled march throws a cancellation exception, but leaves
+   * unmarched slabs marked as changed.
    */
-  private void isolateSlab(int i3, float val, float[][][] array) {
-    for (int i2=0; i2<_n2-1; ++i2)
-      for (int i1=0; i1<_n1-1; ++i1)
-        array[i3][i2][i1] = (_paint[i3][i2][i1]==val)?val:0.0f;
+  void cancel() {
+    _cancelled = true;
   }
 
   /**
-   * Sets up for the marching cubes algorithm.
+   * Sets up for the marching cubes algorithm. If vertices and triangles
+   * for the contour value are retained from the previous march, only
+   * changed slabs are marched.
    */
   private void initiateMarch(float c) {
-    float[][][] array = isolateContourValue(c);
-    _xlist = new FloatList[_n3];
-    _tlist = new IntList[_n3];
-    _stlist = new IntList[_n3];
-
-    _ix0 = new int[_n3][_n2][_n1];
-    _ix1 = new int[_n3][_n2][_n1];
-    _ix2 = new int[_n3][_n2][_n1];
-    for (int i3=0; i3<_n3; ++i3) {
-      for (int i2=0; i2<_n2; ++i2) {
-        for (int i1=0; i1<_n1; ++i1) {
-          _ix0[i3][i2][i1] = -1;
-          _ix1[i3][i2][i1] = -1;
-          _ix2[i3][i2][i1] = -1;
-        }
+    int ns = max(0,_n3-1);
+    IntList slabs = new IntList();
+    boolean all = _xlist==null || c!=_clast;
+    if (all) {
+      _xlist = new FloatList[ns];
+      _tlist = new IntList[ns];
+      for (int i3=0; i3<ns; ++i3)
+        slabs.add(i3);
+    } else {
+      for (int i3=0; i3<ns; ++i3)
+        if (_dirty[i3]) slabs.add(i3);
+    }
+    _clast = c;
+    int[] s = slabs.trim();
+    if (_concurrency==Concurrency.PARALLEL) marchParallel(c,s);
+    else marchSerial(c,s);
+    if (_cancelled) {
+      if (all) {
+        _xlist = null;
+        _tlist = null;
       }
+      throw new CancellationException();
     }
-
-    if (_concurrency==Concurrency.PARALLEL) marchParallel(array,c);
-    else marchSerial(array,c);
-
+    for (int i3=0; i3<ns; ++i3)
+      _dirty[i3] = false;
   }
 
   /**
@@ -541,41 +1002,47 @@ public class Painting3 implements Serializable {
    * edge-intersections are employed.
    * Serial version.
    */
-  private void marchSerial(float[][][] array, float c) {
-    int i3step = 2;
-    int i3start = 0;
-    int i3stop = _n3-1;
-    for (int i3pass=0; i3pass<i3step; ++i3pass,++i3start) {
-      for (int i3=i3start; i3<i3stop; i3+=i3step) {
-        _xlist[i3] = new FloatList();
-        _tlist[i3] = new IntList();
-        _stlist[i3] = new IntList();
-        march(array,c,i3,_xlist[i3],_tlist[i3],_stlist[i3]);
-      }
+  private void marchSerial(float c, int[] slabs) {
+    if (slabs.length==0) return;
+    EdgeCache cache = new EdgeCache();
+    for (int is=0; is<slabs.length && !_cancelled; ++is) {
+      int i3 = slabs[is];
+      _xlist[i3] = new FloatList();
+      _tlist[i3] = new IntList();
+      march(c,i3,cache,_xlist[i3],_tlist[i3]);
     }
   }
 
   /**
    * Performs an adapted version of marching cubes whereby the precomputed
    * edge-intersections are employed.
-   * Parallel version.
+   * Parallel version. Slabs own the vertices they compute, and so are
+   * marched independently in a single parallel loop.
    */
-  private void marchParallel(float[][][] array, float c) {
-    final float[][][] farray = array;
+  private void marchParallel(float c, int[] slabs) {
+    if (slabs.length==0) return;
     final float fc = c;
-    final int i3step = 2;
-    int i3start = 0;
-    final int i3stop = _n3-1;
-    for (int i3pass=0; i3pass<i3step; ++i3pass,++i3start) {
-      Parallel.loop(i3start,i3stop,i3step,new Parallel.LoopInt() {
-        public void compute(int i3) {
-          _tlist[i3] = new IntList();
-          _stlist[i3] = new IntList();
-          _xlist[i3] = new FloatList();
-          march(farray,fc,i3,_xlist[i3],_tlist[i3],_stlist[i3]);
-        }
-      });
-    }
+    final int[] fslabs = slabs;
+    final Parallel.Unsafe<EdgeCache> caches = new Parallel.Unsafe<EdgeCache>();
+    Parallel.loop(slabs.length,new Parallel.LoopInt() {
+      public void compute(int is) {
+        if (_cancelled) return;
+        int i3 = fslabs[is];
+        _tlist[i3] = new IntList();
+        _xlist[i3] = new FloatList();
+        EdgeCache cache = caches.get();
+        if (cache==null) caches.set(cache=new EdgeCache());
+        march(fc,i3,cache,_xlist[i3],_tlist[i3]);
+      }
+    });
+  }
+
+  /**
+   * Determines whether a slab contains no painted samples, and so no part
+   * of the contour for a non-zero value.
+   */
+  private boolean isUnpainted(float c, int i3) {
+    return c!=0.0f && !_bricks.hasBricks(i3) && !_bricks.hasBricks(i3+1);
   }
 
   /**
@@ -583,23 +1050,108 @@ public class Painting3 implements Serializable {
    * logic. Also, precomputed edge intersections are used.
    */
   private void march(
-    float[][][] paint, float c, int i3,
-    FloatList xlist, IntList tlist, IntList stlist)
+    float c, int i3, EdgeCache cache, FloatList xlist, IntList tlist)
   {
-    int nx3 = _n1*_n2*i3;
+    if (isUnpainted(c,i3)) return;
+    float[][] p0 = cache.p0, p1 = cache.p1;
+    loadPlane(i3  ,p0);
+    loadPlane(i3+1,p1);
+    isolatePlane(i3  ,c,p0,p0);
+    isolatePlane(i3+1,c,p1,p1);
+    marchIsolated(c,i3,cache,xlist,tlist);
+  }
+
+  /**
+   * Marches one slab for all values painted in that slab. Lists of
+   * vertices and triangles for each value are added to the map of lists.
+   */
+  private void marchLabels(
+    int i3, int ns, EdgeCache cache,
+    ConcurrentHashMap<Float,SlabLists> lists)
+  {
+    if (!_bricks.hasBricks(i3) && !_bricks.hasBricks(i3+1)) return;
+    float[][] q0 = cache.q0, q1 = cache.q1;
+    loadPlane(i3  ,q0);
+    loadPlane(i3+1,q1);
+
+    // Non-zero values that can be isolated from the two planes; samples
+    // in the last row, column and plane are never isolated.
+    FloatList labels = new FloatList();
+    addLabels(q0,labels);
+    if (i3+1<_n3-1) addLabels(q1,labels);
+
+    for (int il=0; il<labels.n; ++il) {
+      float c = labels.a[il];
+      isolatePlane(i3  ,c,q0,cache.p0);
+      isolatePlane(i3+1,c,q1,cache.p1);
+      FloatList xlist = new FloatList();
+      IntList tlist = new IntList();
+      marchIsolated(c,i3,cache,xlist,tlist);
+      SlabLists sl = lists.get(c);
+      if (sl==null) {
+        SlabLists sn = new SlabLists(ns);
+        sl = lists.putIfAbsent(c,sn);
+        if (sl==null) sl = sn;
+      }
+      sl.x[i3] = xlist;
+      sl.t[i3] = tlist;
+    }
+  }
+
+  /**
+   * Adds distinct non-zero values in one plane of paint values to a list.
+   */
+  private void addLabels(float[][] q, FloatList labels) {
+    for (int i2=0; i2<_n2-1; ++i2) {
+      float[] qi2 = q[i2];
+      float last = 0.0f;
+      for (int i1=0; i1<_n1-1; ++i1) {
+        float c = qi2[i1];
+        if (c!=0.0f && c!=last) {
+          int il = 0;
+          while (il<labels.n && labels.a[il]!=c) ++il;
+          if (il==labels.n) labels.add(c);
+          last = c;
+        }
+      }
+    }
+  }
+
+  /**
+   * Marches one slab of cubes, for isolated contour values in the planes
+   * of samples of the edge cache.
+   */
+  private void marchIsolated(
+    float c, int i3, EdgeCache cache, FloatList xlist, IntList tlist)
+  {
+    int[][] ix0 = cache.ix0, ix1 = cache.ix1, ix2 = cache.ix2;
+    int[][] jx0 = cache.jx0, jx1 = cache.jx1;
+    float[][] p0 = cache.p0, p1 = cache.p1;
+
+    // Compute vertices for all intersected edges owned by this slab, and
+    // number (but do not compute) those in the top plane of this slab.
+    // The top plane of the last slab is owned by that slab.
+    int nx = 0;
+    nx = indexPlane(i3,p0,c,ix0,ix1,nx,xlist);
+    nx = indexAxis3(i3,p0,p1,c,ix2,nx,xlist);
+    if (i3==_n3-2) {
+      indexPlane(i3+1,p1,c,jx0,jx1,nx,xlist);
+    } else {
+      indexPlane(i3+1,p1,c,jx0,jx1,0,null);
+    }
 
     for (int i2=0; i2<_n2-1; ++i2) {
       for (int i1=0; i1<_n1-1; ++i1) {
 
         // Eight corner values for this cube.
-        float c0 = paint[i3  ][i2  ][i1  ];
-        float c1 = paint[i3  ][i2  ][i1+1];
-        float c2 = paint[i3  ][i2+1][i1+1];
-        float c3 = paint[i3  ][i2+1][i1  ];
-        float c4 = paint[i3+1][i2  ][i1  ];
-        float c5 = paint[i3+1][i2  ][i1+1];
-        float c6 = paint[i3+1][i2+1][i1+1];
-        float c7 = paint[i3+1][i2+1][i1  ];
+        float c0 = p0[i2  ][i1  ];
+        float c1 = p0[i2  ][i1+1];
+        float c2 = p0[i2+1][i1+1];
+        float c3 = p0[i2+1][i1  ];
+        float c4 = p1[i2  ][i1  ];
+        float c5 = p1[i2  ][i1+1];
+        float c6 = p1[i2+1][i1+1];
+        float c7 = p1[i2+1][i1  ];
 
         // Case index
         int ci = 0;
@@ -619,155 +1171,227 @@ public class Painting3 implements Serializable {
           int[] edges = _edges[ci];
           int ne = edges.length;
 
-          // For each edge triplet
-          for (int ie=0; ie<ne; ie+=3) {
-
-            // For each edge
-            for (int je=0; je<3; ++je) {
-              // Pull the interpolated value from the byte arrays
-              int edge = edges[ie+je];
-              float p;
-              int j1,j2,j3,kk;
-              switch(edge) {
-              case 0: // 0->1
-                j1 = i1;
-                j2 = i2;
-                j3 = i3;
-                kk = 0;
-                break;
-              case 1: // 1->2
-                j1 = i1+1;
-                j2 = i2;
-                j3 = i3;
-                kk = 1;
-                break;
-              case 2: // 3->2
-                j1 = i1;
-                j2 = i2+1;
-                j3 = i3;
-                kk = 0;
-                break;
-              case 3: // 0->3
-                j1 = i1;
-                j2 = i2;
-                j3 = i3;
-                kk = 1;
-                break;
-              case 4: // 4->5
-                j1 = i1;
-                j2 = i2;
-                j3 = i3+1;
-                kk = 0;
-                break;
-              case 5: // 5->6
-                j1 = i1+1;
-                j2 = i2;
-                j3 = i3+1;
-                kk = 1;
-                break;
-              case 6: // 7->6
-                j1 = i1;
-                j2 = i2+1;
-                j3 = i3+1;
-                kk = 0;
-                break;
-              case 7: // 4->7
-                j1 = i1;
-                j2 = i2;
-                j3 = i3+1;
-                kk = 1;
-                break;
-              case 8: // 0->4
-                j1 = i1;
-                j2 = i2;
-                j3 = i3;
-                kk = 2;
-                break;
-              case 9: // 1->5
-                j1 = i1+1;
-                j2 = i2;
-                j3 = i3;
-                kk = 2;
-                break;
-              case 10: // 3->7
-                j1 = i1;
-                j2 = i2+1;
-                j3 = i3;
-                kk = 2;
-                break;
-              default: // 2->6
-                j1 = i1+1;
-                j2 = i2+1;
-                j3 = i3;
-                kk = 2;
-              }
-
-              /*
-               * Pre-computed edge intersections are used here.
-               * Depending on the dimension (kk), the proper edge intersection
-               * is pulled from its corresponding array.
-               */
-              if (kk==0)      p = (float)_v1[j3][j2][j1]/100.0f;
-              else if (kk==1) p = (float)_v2[j3][j2][j1]/100.0f;
-              else            p = (float)_v3[j3][j2][j1]/100.0f;
-
-              // Index of vertex, if already computed; or -1, if not yet.
-              int ix;
-              if (kk==0)      ix = _ix0[j3][j2][j1];
-              else if (kk==1) ix = _ix1[j3][j2][j1];
-              else            ix = _ix2[j3][j2][j1];
-              
-              // If vertex not yet stored...
-              if (ix<0) {
-                double x1,x2,x3;
-                switch(kk) {
-                case 0:  // axis 1
-                  x1 = _f1+_d1*(j1+p);
-                  x2 = _f2+_d2*(j2  );
-                  x3 = _f3+_d3*(j3  );
-                  break;
-                case 1:  // axis 2
-                  x1 = _f1+_d1*(j1  );
-                  x2 = _f2+_d2*(j2+p);
-                  x3 = _f3+_d3*(j3  );
-                  break;
-                default: // axis 3
-                  x1 = _f1+_d1*(j1  );
-                  x2 = _f2+_d2*(j2  );
-                  x3 = _f3+_d3*(j3+p);
-                }
-                ix = nx3++;
-                xlist.add((float)x1);
-                xlist.add((float)x2);
-                xlist.add((float)x3);
-                stlist.add(ix);
-                if (kk==0)      _ix0[j3][j2][j1] = ix;
-                else if (kk==1) _ix1[j3][j2][j1] = ix;
-                else            _ix2[j3][j2][j1] = ix;
-              }
-              tlist.add(ix);
+          // For all triangle vertices (edge intersections), append the
+          // index of the vertex to the triangle list.
+          for (int ie=0; ie<ne; ++ie) {
+            int ix;
+            switch(edges[ie]) {
+            case 0: // 0->1
+              ix = ix0[i2  ][i1  ];
+              break;
+            case 1: // 1->2
+              ix = ix1[i2  ][i1+1];
+              break;
+            case 2: // 3->2
+              ix = ix0[i2+1][i1  ];
+              break;
+            case 3: // 0->3
+              ix = ix1[i2  ][i1  ];
+              break;
+            case 4: // 4->5
+              ix = jx0[i2  ][i1  ];
+              break;
+            case 5: // 5->6
+              ix = jx1[i2  ][i1+1];
+              break;
+            case 6: // 7->6
+              ix = jx0[i2+1][i1  ];
+              break;
+            case 7: // 4->7
+              ix = jx1[i2  ][i1  ];
+              break;
+            case 8: // 0->4
+              ix = ix2[i2  ][i1  ];
+              break;
+            case 9: // 1->5
+              ix = ix2[i2  ][i1+1];
+              break;
+            case 10: // 3->7
+              ix = ix2[i2+1][i1  ];
+              break;
+            default: // 2->6
+              ix = ix2[i2+1][i1+1];
             }
+            tlist.add(ix);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Numbers vertices for intersected edges aligned with axes 1 and 2 in the
+   * plane with index j3, for isolated values pj3 in that plane. If the
+   * vertex list is null, vertices are not computed and indices are stored
+   * as -1-k for vertex index k. Edges are always numbered in the same
+   * order. Returns the number of vertices.
+   */
+  private int indexPlane(
+    int j3, float[][] pj3, float c, int[][] ix0, int[][] ix1, int nx,
+    FloatList xlist)
+  {
+    for (int j2=0; j2<_n2; ++j2) {
+      float[] pj2 = pj3[j2];
+      float[] pk2 = (j2<_n2-1)?pj3[j2+1]:null;
+      for (int j1=0; j1<_n1; ++j1) {
+        boolean bj = pj2[j1]==c;
+        if (j1<_n1-1 && bj!=(pj2[j1+1]==c)) {
+          if (xlist!=null) {
+            ix0[j2][j1] = nx;
+            addVertex(j1,j2,j3,0,xlist);
+          } else {
+            ix0[j2][j1] = -1-nx;
+          }
+          ++nx;
+        }
+        if (pk2!=null && bj!=(pk2[j1]==c)) {
+          if (xlist!=null) {
+            ix1[j2][j1] = nx;
+            addVertex(j1,j2,j3,1,xlist);
+          } else {
+            ix1[j2][j1] = -1-nx;
           }
+          ++nx;
         }
       }
     }
+    return nx;
   }
 
   /**
-   * Resets all arrays. Paint array is set to zeros, edge intersection arrays
-   * are set to negative ones.
+   * Numbers and computes vertices for intersected edges aligned with axis 3
+   * between the planes with indices j3 and j3+1, for isolated values pj3
+   * and pk3 in those planes.
    */
-  private void initializeAllArrays(boolean all) {
-    for (int i3=0; i3<_n3; ++i3) {
-      for (int i2=0; i2<_n2; ++i2) {
-        for (int i1=0; i1<_n1; ++i1) {
-          if (all) _paint[i3][i2][i1] = 0.0f;
-          _v1[i3][i2][i1] = -1;
-          _v2[i3][i2][i1] = -1;
-          _v3[i3][i2][i1] = -1;
+  private int indexAxis3(
+    int j3, float[][] pj3, float[][] pk3, float c, int[][] ix2, int nx,
+    FloatList xlist)
+  {
+    for (int j2=0; j2<_n2; ++j2) {
+      float[] pj2 = pj3[j2];
+      float[] pk2 = pk3[j2];
+      for (int j1=0; j1<_n1; ++j1) {
+        if ((pj2[j1]==c)!=(pk2[j1]==c)) {
+          ix2[j2][j1] = nx++;
+          addVertex(j1,j2,j3,2,xlist);
         }
       }
     }
+    return nx;
+  }
+
+  /**
+   * Computes and stores coordinates of the vertex on the edge aligned with
+   * axis kk from sample (j1,j2,j3). Pre-computed edge intersections are
+   * used here. Depending on the dimension (kk), the proper edge intersection
+   * is pulled from its corresponding array.
+   */
+  private void addVertex(int j1, int j2, int j3, int kk, FloatList xlist) {
+    double x1,x2,x3;
+    float p;
+    switch(kk) {
+    case 0:  // axis 1
+      p = (float)_bricks.getEdge1(j1,j2,j3)/100.0f;
+      x1 = _f1+_d1*(j1+p);
+      x2 = _f2+_d2*(j2  );
+      x3 = _f3+_d3*(j3  );
+      break;
+    case 1:  // axis 2
+      p = (float)_bricks.getEdge2(j1,j2,j3)/100.0f;
+      x1 = _f1+_d1*(j1  );
+      x2 = _f2+_d2*(j2+p);
+      x3 = _f3+_d3*(j3  );
+      break;
+    default: // axis 3
+      p = (float)_bricks.getEdge3(j1,j2,j3)/100.0f;
+      x1 = _f1+_d1*(j1  );
+      x2 = _f2+_d2*(j2  );
+      x3 = _f3+_d3*(j3+p);
+    }
+    xlist.add((float)x1);
+    xlist.add((float)x2);
+    xlist.add((float)x3);
+  }
+
+  /**
+   * Makes a contour from lists of vertices and triangles for all slabs.
+   * Vertex indices stored in the triangle lists are local to each slab,
+   * or, if negative, refer to a vertex in the bottom plane of the next
+   * slab.
+   */
+  private Contour makeContour(FloatList[] xlist, IntList[] tlist) {
+
+    // Vertex offsets for all slabs, the prefix sum of the slab vertex
+    // counts.
+    int ns = xlist.length;
+    int[] ox = new int[ns+1];
+    int[] ot = new int[ns+1];
+    for (int i=0; i<ns; ++i) {
+      ox[i+1] = ox[i]+xlist[i].n/3;
+      ot[i+1] = ot[i]+tlist[i].n;
+    }
+
+    Contour contour = new Contour();
+    contour.x = new float[3*ox[ns]];
+    contour.i = new int[ot[ns]];
+    mergeSlabs(ox,ot,xlist,tlist,contour);
+    return contour;
+  }
+
+  /**
+   * Copies the vertices and triangles of all slabs into a contour.
+   * Slabs are independent once their offsets are known, so they are copied
+   * in parallel, and triangle indices are made global during the copy.
+   */
+  private void mergeSlabs(
+    int[] ox, int[] ot, FloatList[] xlist, IntList[] tlist, Contour contour)
+  {
+    final int[] fox = ox;
+    final int[] fot = ot;
+    final FloatList[] fxlist = xlist;
+    final IntList[] ftlist = tlist;
+    final Contour fcontour = contour;
+    int ns = ox.length-1;
+    if (_concurrency==Concurrency.PARALLEL && ns>0) {
+      Parallel.loop(ns,new Parallel.LoopInt() {
+        public void compute(int i3) {
+          mergeSlab(i3,fox,fot,fxlist,ftlist,fcontour);
+        }
+      });
+    } else {
+      for (int i3=0; i3<ns; ++i3)
+        mergeSlab(i3,fox,fot,fxlist,ftlist,fcontour);
+    }
+  }
+
+  /**
+   * Copies one slab into the contour, swapping the 1st and 3rd dimension
+   * if necessary.
+   */
+  private void mergeSlab(
+    int i3, int[] ox, int[] ot, FloatList[] xlist, IntList[] tlist,
+    Contour contour)
+  {
+    float[] x = contour.x;
+    int[] t = contour.i;
+    int xn = 3*ox[i3];
+    int nx = xlist[i3].n;
+    System.arraycopy(xlist[i3].a,0,x,xn,nx);
+    if (_swap13) {
+      for (int i=xn; i<xn+nx; i+=3) {
+        float x1 = x[i  ];
+        x[i  ] = x[i+2];
+        x[i+2] = x1;
+      }
+    }
+    int[] ts = tlist[i3].a;
+    int nt = tlist[i3].n;
+    int jx = ox[i3];
+    int kx = ox[i3+1]-1;
+    for (int it=0,jt=ot[i3]; it<nt; ++it,++jt) {
+      int ix = ts[it];
+      t[jt] = (ix>=0)?jx+ix:kx-ix;
+    }
   }
 
   /**
@@ -0,0 +1,276 @@
+/****************************************************************************
+Copyright (c) 2010, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package cae.paint;
+
+import edu.mines.jtk.dsp.Sampling;
+import edu.mines.jtk.util.Parallel;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A binary file containing a 3D painting.
+ * Only bricks of painted voxels are stored, with their paint values and
+ * edge intersections, so that the size of a file is proportional to the
+ * painted region, and edge intersections, and therefore contours, are
+ * exactly those of the painting saved. A painting file has the following
+ * format, with all values big-endian:
+ * <code>
+ * magic version
+ * n1 n2 n3 f1 f2 f3 d1 d2 d3
+ * size nb
+ * ib[nb]
+ * offset[nb+1]
+ * record[nb]
+ * </code>
+ * where n, f and d are the counts (ints), first values and intervals
+ * (doubles) of samplings, size is the number of samples on each side of
+ * a brick, nb is the number of bricks stored, ib are indices of those
+ * bricks, in increasing order, and offsets are the positions in the file
+ * of their records, followed by the length of the file. Each record
+ * begins with a byte of flags, followed by either one or all of the paint
+ * values of the brick, and then, unless there are none, the bytes of edge
+ * intersections in the 1st, 2nd and 3rd dimensions.
+ * <p>
+ * Records are written in parallel, and read in parallel from windows of
+ * the file that are mapped into memory, so that the time to read a
+ * painting is proportional to the painted region, not to the volume.
+ * @author Chris Engelsma, Colorado School of Mines
+ * @version 2010.12.10
+ */
+public class PaintingFile {
+
+  /**
+   * Reads a painting from a file.
+   * @param fileName the name of the painting file.
+   * @return the painting.
+   */
+  public static Painting3 read(String fileName) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(fileName,"r");
+      try {
+        FileChannel fc = raf.getChannel();
+        if (fc.size()<HEADER)
+          throw new IOException(fileName+" is not a painting file");
+        ByteBuffer hb = map(fc,0,HEADER);
+        if (hb.getInt()!=MAGIC)
+          throw new IOException(fileName+" is not a painting file");
+        if (hb.getInt()!=VERSION)
+          throw new IOException(fileName+" has an unknown version");
+        int n1 = hb.getInt(), n2 = hb.getInt(), n3 = hb.getInt();
+        double f1 = hb.getDouble(), f2 = hb.getDouble(), f3 = hb.getDouble();
+        double d1 = hb.getDouble(), d2 = hb.getDouble(), d3 = hb.getDouble();
+        if (hb.getInt()!=PaintBricks.SIZE)
+          throw new IOException(fileName+" has an unknown brick size");
+        int nb = hb.getInt();
+        ByteBuffer ib = map(fc,HEADER,4L*nb+8L*(nb+1));
+        int[] jb = new int[nb];
+        long[] offsets = new long[nb+1];
+        ib.asIntBuffer().get(jb);
+        ib.position(4*nb);
+        ib.asLongBuffer().get(offsets);
+        if (offsets[nb]!=fc.size())
+          throw new IOException(fileName+" is incomplete");
+        Painting3 painting = new Painting3(
+          new Sampling(n1,d1,f1),
+          new Sampling(n2,d2,f2),
+          new Sampling(n3,d3,f3));
+        readRecords(fc,jb,offsets,painting.getBricks());
+        return painting;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  /**
+   * Writes a painting to a file.
+   * The painting must not be painted while it is written; a snapshot may
+   * be written while painting continues.
+   * @param fileName the name of the painting file.
+   * @param painting the painting.
+   */
+  public static void write(String fileName, Painting3 painting) {
+    PaintBricks bricks = painting.getBricks();
+    int[] jb = bricks.getBrickIndices();
+    int nb = jb.length;
+
+    // Record offsets, the prefix sum of record sizes.
+    long[] offsets = new long[nb+1];
+    int[] sizes = getRecordSizes(bricks,jb);
+    offsets[0] = HEADER+4L*nb+8L*(nb+1);
+    for (int kb=0; kb<nb; ++kb)
+      offsets[kb+1] = offsets[kb]+sizes[kb];
+
+    Sampling s1 = painting.getSampling1();
+    Sampling s2 = painting.getSampling2();
+    Sampling s3 = painting.getSampling3();
+    ByteBuffer hb = ByteBuffer.allocate((int)offsets[0]);
+    hb.putInt(MAGIC).putInt(VERSION);
+    hb.putInt(s1.getCount()).putInt(s2.getCount()).putInt(s3.getCount());
+    hb.putDouble(s1.getFirst());
+    hb.putDouble(s2.getFirst());
+    hb.putDouble(s3.getFirst());
+    hb.putDouble(s1.getDelta());
+    hb.putDouble(s2.getDelta());
+    hb.putDouble(s3.getDelta());
+    hb.putInt(PaintBricks.SIZE).putInt(nb);
+    for (int kb=0; kb<nb; ++kb)
+      hb.putInt(jb[kb]);
+    for (int kb=0; kb<=nb; ++kb)
+      hb.putLong(offsets[kb]);
+    hb.flip();
+    try {
+      RandomAccessFile raf = new RandomAccessFile(fileName,"rw");
+      try {
+        raf.setLength(0);
+        FileChannel fc = raf.getChannel();
+        write(fc,hb,0);
+        writeRecords(fc,jb,offsets,bricks);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int MAGIC = 0x50334246; // "P3BF"
+  private static final int VERSION = 1;
+  private static final long HEADER = 4*5+8*6+4*2; // bytes before indices
+
+  // Maximum number of bytes in one record.
+  private static final int MAX_RECORD =
+    1+7*PaintBricks.SIZE*PaintBricks.SIZE*PaintBricks.SIZE;
+
+  // Maximum number of bytes in one mapped window of records.
+  private static final long MAX_MAP_BYTES = 1L<<28;
+
+  /*
+   * Gets sizes of records of bricks, computed in parallel.
+   */
+  private static int[] getRecordSizes(PaintBricks bricks, int[] jb) {
+    final PaintBricks fbricks = bricks;
+    final int[] fjb = jb;
+    final int[] sizes = new int[jb.length];
+    if (jb.length==0) return sizes;
+    Parallel.loop(jb.length,new Parallel.LoopInt() {
+      public void compute(int kb) {
+        sizes[kb] = fbricks.getRecordSize(fjb[kb]);
+      }
+    });
+    return sizes;
+  }
+
+  /*
+   * Writes records in parallel, each thread with its own buffer.
+   */
+  private static void writeRecords(
+    FileChannel fc, int[] jb, long[] offsets, PaintBricks bricks)
+    throws IOException
+  {
+    final FileChannel ffc = fc;
+    final int[] fjb = jb;
+    final long[] foffsets = offsets;
+    final PaintBricks fbricks = bricks;
+    final Parallel.Unsafe<ByteBuffer> buffers =
+      new Parallel.Unsafe<ByteBuffer>();
+    if (jb.length==0) return;
+    try {
+      Parallel.loop(jb.length,new Parallel.LoopInt() {
+        public void compute(int kb) {
+          ByteBuffer bb = buffers.get();
+          if (bb==null) buffers.set(bb=ByteBuffer.allocate(MAX_RECORD));
+          bb.clear();
+          fbricks.putRecord(fjb[kb],bb);
+          bb.flip();
+          try {
+            write(ffc,bb,foffsets[kb]);
+          } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+          }
+        }
+      });
+    } catch (RuntimeException re) {
+      if (re.getCause() instanceof IOException)
+        throw (IOException)re.getCause();
+      throw re;
+    }
+  }
+
+  /*
+   * Reads records in parallel. Records are grouped in windows of the
+   * file, each of which is mapped and read by one thread.
+   */
+  private static void readRecords(
+    FileChannel fc, int[] jb, long[] offsets, PaintBricks bricks)
+    throws IOException
+  {
+    int nb = jb.length;
+    int nw = 0;
+    int[] kw = new int[nb+1]; // index of first record in each window
+    for (int kb=0; kb<nb; ++nw) {
+      kw[nw] = kb;
+      long end = offsets[kb]+MAX_MAP_BYTES;
+      for (++kb; kb<nb && offsets[kb+1]<=end; ++kb);
+    }
+    kw[nw] = nb;
+    if (nw==0) return;
+    final FileChannel ffc = fc;
+    final int[] fjb = jb;
+    final long[] foffsets = offsets;
+    final int[] fkw = kw;
+    final PaintBricks fbricks = bricks;
+    try {
+      Parallel.loop(nw,new Parallel.LoopInt() {
+        public void compute(int iw) {
+          int ka = fkw[iw], kb = fkw[iw+1];
+          long pos = foffsets[ka];
+          try {
+            ByteBuffer bb = map(ffc,pos,foffsets[kb]-pos);
+            for (int k=ka; k<kb; ++k) {
+              bb.position((int)(foffsets[k]-pos));
+              fbricks.getRecord(fjb[k],bb);
+            }
+          } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+          }
+        }
+      });
+    } catch (RuntimeException re) {
+      if (re.getCause() instanceof IOException)
+        throw (IOException)re.getCause();
+      throw re;
+    }
+  }
+
+  /*
+   * Maps part of a file for reading.
+   */
+  private static ByteBuffer map(FileChannel fc, long pos, long size)
+    throws IOException
+  {
+    return fc.map(FileChannel.MapMode.READ_ONLY,pos,size);
+  }
+
+  /*
+   * Writes all bytes in a buffer at a position in a file.
+   */
+  private static void write(FileChannel fc, ByteBuffer bb, long pos)
+    throws IOException
+  {
+    while (bb.hasRemaining())
+      pos += fc.write(bb,pos);
+  }
+}
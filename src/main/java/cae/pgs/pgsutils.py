@@ -55,6 +55,15 @@ def readImage(name):
   ais.close()
   return image
 
+def mapImage(name):
+  """
+  Maps an image from a file with specified name, without reading it
+  """
+  from cae.io import MappedImage
+  fileName = seismicDir+name+".dat"
+  n1,n2,n3 = s1.count,s2.count,s3.count
+  return MappedImage(fileName,n1,n2,n3)
+
 def writeImage(name,image):
   fileName = seismicDir+name+".dat"
   aos = ArrayOutputStream(fileName)
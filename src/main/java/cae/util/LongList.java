@@ -0,0 +1,61 @@
+/****************************************************************************
+Copyright (c) 2010, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package cae.util;
+
+import java.io.Serializable;
+
+/**
+ * A list of longs.
+ * @author Chris Engelsma, Colorado School of Mines.
+ * @version 2010.12.10
+ */
+public class LongList implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public int n;      // the number of submitted values.
+  public long[] a = new long[64]; // the array of longs.
+
+  /**
+   * Adds a value to the list.
+   * @param i a long.
+   */
+  public void add(long i) {
+    if (n==a.length) {
+      long[] t = new long[2*n];
+      System.arraycopy(a,0,t,0,n);
+      a = t;
+    }
+    a[n++] = i;
+  }
+
+  /**
+   * Gets the value at the requested index.
+   * @param i the index.
+   * @return the long at index i
+   */
+  public long get(int i) {
+    return a[i];
+  }
+
+  /**
+   * Clears the long list.
+   */
+  public void clear() {
+    n = 0;
+    a = new long[64];
+  }
+
+  /**
+   * Trims the list to size.
+   * @return the trimmed list of longs.
+   */
+  public long[] trim() {
+    long[] t = new long[n];
+    System.arraycopy(a,0,t,0,n);
+    return t;
+  }
+}
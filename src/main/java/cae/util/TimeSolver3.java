@@ -9,7 +9,10 @@ package cae.util;
 import java.util.ArrayList;
 import java.util.Random;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import edu.mines.jtk.dsp.Tensors3;
 
@@ -23,6 +26,11 @@ import edu.mines.jtk.util.Stopwatch;
  * <p>
  * This solver uses an iterative method to compute the solution times t.
  * Iterations are similar to those described by Jeong and Whitaker (2007).
+ * <p>
+ * Alternatively, times may be computed by fast sweeping, in which all 
+ * samples are updated in sweeps with alternating orders, until times 
+ * converge. Sweeping may be faster for times in an entire volume, such as
+ * those from many zero-time samples in smooth tensor fields.
  * @author Dave Hale, Colorado School of Mines
  * @version 2008.07.22
  */
@@ -36,6 +44,14 @@ public class TimeSolver3 {
     SERIAL
   };
 
+  /**
+   * Method used when solving for times.
+   */
+  public enum Method {
+    ITERATIVE,
+    SWEEPING
+  };
+
   /**
    * A listener for time changes.
    */
@@ -82,12 +98,54 @@ public class TimeSolver3 {
     _concurrency = concurrency;
   }
 
+  /**
+   * Sets the method used to solve for times.
+   * The default method is iterative, in which only samples in a list of
+   * active samples are updated. In the sweeping method, all samples are
+   * updated in each sweep, so that a solve costs at least one sweep of all
+   * samples, but with regular access to memory.
+   * @param method the method.
+   */
+  public void setMethod(Method method) {
+    _method = method;
+  }
+
+  /**
+   * Sets the executor used to solve for times in parallel.
+   * By default, all solvers share one pool of daemon threads, one for each
+   * available processor. That pool is created when first needed, and 
+   * threads in it persist between solves, so that solves are not delayed 
+   * by starting threads. This executor is not shut down by this solver.
+   * @param executor the executor; null, for the shared default pool.
+   */
+  public void setExecutor(ExecutorService executor) {
+    _executor = executor;
+  }
+
   /**
    * Sets the tensors used by this solver.
    * @param tensors the tensors.
    */
   public void setTensors(Tensors3 tensors) {
     _tensors = tensors;
+    ++_cacheStamp;
+  }
+
+  /**
+   * Sets the maximum number of bytes used to cache tensor coefficients.
+   * Coefficients used to compute times are computed from the tensor for
+   * each sample when first needed, and cached in bricks of samples, so 
+   * that they are computed only once, even though times for each sample
+   * are computed many times. Coefficients are cached until times are reset
+   * or tensors are set. Samples for which the cache is full have their 
+   * coefficients computed each time they are needed. The default maximum
+   * is 64 MB, which, with 72 bytes of coefficients per sample, is enough
+   * for about one million samples.
+   * @param nbytes the maximum number of bytes; zero, for no cache.
+   */
+  public void setCacheSize(long nbytes) {
+    _cacheBytes = nbytes;
+    initCache();
   }
 
   /**
@@ -111,7 +169,61 @@ public class TimeSolver3 {
    * @return the modified array of times; by reference, not by copy.
    */
   public float[][][] zeroAt(int i1, int i2, int i3) {
-    solveFrom(i1,i2,i3);
+    ActiveList zl = new ActiveList();
+    zl.append(index(i1,i2,i3));
+    solveFrom(zl);
+    return _t;
+  }
+
+  /**
+   * Zeros the times at the specified samples and computes times for 
+   * neighbors. All samples with zero times are solved for together, so 
+   * that the computed times are the least times from any of those samples,
+   * at the cost of a single solve. Otherwise, this method is like the
+   * method that zeros the time at only one sample.
+   * @param i1 array of indices in 1st dimension of times to zero.
+   * @param i2 array of indices in 2nd dimension of times to zero.
+   * @param i3 array of indices in 3rd dimension of times to zero.
+   * @return the modified array of times; by reference, not by copy.
+   */
+  public float[][][] zeroAt(int[] i1, int[] i2, int[] i3) {
+    ActiveList zl = new ActiveList();
+    for (int i=0; i<i1.length; ++i)
+      zl.append(index(i1[i],i2[i],i3[i]));
+    solveFrom(zl);
+    return _t;
+  }
+
+  /**
+   * Zeros the times at the specified samples and computes times for 
+   * neighbors, in a single solve.
+   * @param points array[np][3] of indices {i1,i2,i3} of times to zero.
+   * @return the modified array of times; by reference, not by copy.
+   */
+  public float[][][] zeroAt(int[][] points) {
+    ActiveList zl = new ActiveList();
+    for (int[] p : points)
+      zl.append(index(p[0],p[1],p[2]));
+    solveFrom(zl);
+    return _t;
+  }
+
+  /**
+   * Zeros the times at all samples for which a mask is true and computes
+   * times for neighbors, in a single solve. For example, the mask may
+   * be true for all samples on a horizon or a fault, so that times are 
+   * those from the nearest such sample.
+   * @param mask array[n3][n2][n1] of flags; true, for times to zero.
+   * @return the modified array of times; by reference, not by copy.
+   */
+  public float[][][] zeroAt(boolean[][][] mask) {
+    ActiveList zl = new ActiveList();
+    for (int i3=0; i3<_n3; ++i3)
+      for (int i2=0; i2<_n2; ++i2)
+        for (int i1=0; i1<_n1; ++i1)
+          if (mask[i3][i2][i1])
+            zl.append(index(i1,i2,i3));
+    solveFrom(zl);
     return _t;
   }
 
@@ -128,6 +240,7 @@ public class TimeSolver3 {
    */
   public void reset() {
     fill(INFINITY,_t);
+    ++_cacheStamp;
   }
 
   /**
@@ -160,10 +273,38 @@ public class TimeSolver3 {
   private Tensors3 _tensors;
   private float _tmax = INFINITY;
   private float[][][] _t;
-  private Sample[][][] _s;
+  private int[] _marks; // marks for samples, indexed by sample index
+  private boolean[] _absent; // absent flags, indexed by sample index
+  private int[] _ks; // sample index offsets for six neighbor samples
   private Concurrency _concurrency = Concurrency.PARALLEL;
+  private Method _method = Method.ITERATIVE;
   private ArrayList<Listener> _listeners = new ArrayList<Listener>();
-  private ArrayList<Sample> _stack = new ArrayList<Sample>(1024);
+  private IntStack _stack = new IntStack();
+  private ExecutorService _executor; // null, for the shared default pool
+  private ActiveList[] _bl; // B lists for parallel tasks, reused
+  private long _cacheBytes = 64L<<20; // maximum bytes in cache
+  private int _cacheStamp = 1; // bricks with this stamp are valid
+  private int _nc1,_nc2,_nc3; // numbers of bricks in cache
+  private AtomicReferenceArray<float[]> _cache; // bricks of coefficients
+  private AtomicIntegerArray _cacheStamps; // stamps of bricks in cache
+  private AtomicInteger _cacheCount; // number of bricks allocated
+  private float[][] _d; // work arrays for parallel tasks, reused
+
+  // Pool of threads shared by solvers, created when first needed.
+  private static ExecutorService _pool;
+  private static synchronized ExecutorService getPool() {
+    if (_pool==null) {
+      int nthread = Runtime.getRuntime().availableProcessors();
+      _pool = Executors.newFixedThreadPool(nthread,new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r,"TimeSolver3");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return _pool;
+  }
 
   private void init(int n1, int n2, int n3, float[][][] t, Tensors3 tensors) {
     _n1 = n1;
@@ -174,11 +315,16 @@ public class TimeSolver3 {
     _n3m = n3-1;
     _tensors = tensors;
     _t = (t!=null)?t:fillfloat(INFINITY,n1,n2,n3);
-    _s = new Sample[n3][n2][n1];
-    for (int i3=0; i3<n3; ++i3)
-      for (int i2=0; i2<n2; ++i2)
-        for (int i1=0; i1<n1; ++i1)
-          _s[i3][i2][i1] = new Sample(i1,i2,i3);
+    _marks = new int[n1*n2*n3];
+    _absent = new boolean[n1*n2*n3];
+    _ks = new int[]{-1,1,-n1,n1,-n1*n2,n1*n2};
+    initCache();
+  }
+
+  // Samples are represented by indices i = i1+n1*(i2+n2*i3), so that
+  // solver state is stored in arrays of primitives, not in objects.
+  private int index(int i1, int i2, int i3) {
+    return i1+_n1*(i2+_n2*i3);
   }
 
   // Sample index offsets for six neighbor samples.
@@ -226,21 +372,9 @@ public class TimeSolver3 {
       0, 0, 0, 0,-1,-1, 1, 1,-1,-1, 1, 1,
       0, 0, 0, 0,-1, 1}};
 
-  // A sample has indices and a flag used to build the active list.
-  private static class Sample {
-    int i1,i2,i3; // sample indices
-    int marked; // used to mark samples when computing times
-    boolean absent; // used to build active lists
-    Sample(int i1, int i2, int i3) {
-      this.i1 = i1;
-      this.i2 = i2;
-      this.i3 = i3;
-    }
-  }
-
-  // List of active samples.
+  // List of active samples, represented by sample indices.
   private class ActiveList {
-    void append(Sample s) {
+    void append(int s) {
       if (_n==_a.length)
         growTo(2*_n);
       _a[_n++] = s;
@@ -251,7 +385,7 @@ public class TimeSolver3 {
     int size() {
       return _n;
     }
-    Sample get(int i) {
+    int get(int i) {
       return _a[i];
     }
     void clear() {
@@ -259,17 +393,17 @@ public class TimeSolver3 {
     }
     void setAllAbsent() {
       for (int i=0; i<_n; ++i)
-        _a[i].absent = true;
+        _absent[_a[i]] = true;
     }
     void appendIfAbsent(ActiveList al) {
       if (_n+al._n>_a.length)
         growTo(2*(_n+al._n));
       int n = al._n;
       for (int i=0; i<n; ++i) {
-        Sample s = al.get(i);
-        if (s.absent) {
+        int s = al.get(i);
+        if (_absent[s]) {
           _a[_n++] = s;
-          s.absent = false;
+          _absent[s] = false;
         }
       }
     }
@@ -278,7 +412,7 @@ public class TimeSolver3 {
       for (int i=0; i<_n; ++i) {
         int j = r.nextInt(_n);
         int k = r.nextInt(_n);
-        Sample aj = _a[j];
+        int aj = _a[j];
         _a[j] = _a[k];
         _a[k] = aj;
       }
@@ -286,14 +420,15 @@ public class TimeSolver3 {
     void dump() { // debugging: prints this list
       trace("ActiveList.dump: n="+_n);
       for (int i=0; i<_n; ++i) {
-        Sample s = _a[i];
-        trace(" s["+i+"] = ("+s.i1+","+s.i2+","+s.i3+")");
+        int s = _a[i];
+        int i1 = s%_n1, i2 = (s/_n1)%_n2, i3 = s/_n1/_n2;
+        trace(" s["+i+"] = ("+i1+","+i2+","+i3+")");
       }
     }
     private int _n;
-    private Sample[] _a = new Sample[1024];
+    private int[] _a = new int[1024];
     private void growTo(int capacity) {
-      Sample[] a = new Sample[capacity];
+      int[] a = new int[capacity];
       System.arraycopy(_a,0,a,0,_n);
       _a = a;
     }
@@ -306,43 +441,60 @@ public class TimeSolver3 {
   private void clearMarked() {
     if (_marked==Integer.MAX_VALUE) { // rarely!
       _marked = 1;
-      for (int i3=0; i3<_n3; ++i3) {
-        for (int i2=0; i2<_n2; ++i2) {
-          for (int i1=0; i1<_n1; ++i1) {
-            _s[i3][i2][i1].marked = 0;
-          }
-        }
-      }
+      zero(_marks);
     } else { // typically
       ++_marked;
     }
   }
-  private void mark(Sample s) {
-    s.marked = _marked;
+  private void mark(int s) {
+    _marks[s] = _marked;
   }
-  private void unmark(Sample s) {
-    s.marked -= 1;
+  private void unmark(int s) {
+    _marks[s] -= 1;
   }
-  private boolean isMarked(Sample s) {
-    return s.marked==_marked;
+  private boolean isMarked(int s) {
+    return _marks[s]==_marked;
+  }
+
+  // Stack of sample indices.
+  private static class IntStack {
+    void push(int s) {
+      if (_n==_a.length) {
+        int[] a = new int[2*_n];
+        System.arraycopy(_a,0,a,0,_n);
+        _a = a;
+      }
+      _a[_n++] = s;
+    }
+    int pop() {
+      return _a[--_n];
+    }
+    boolean isEmpty() {
+      return _n==0;
+    }
+    void clear() {
+      _n = 0;
+    }
+    private int _n;
+    private int[] _a = new int[1024];
   }
 
   private void fireTimesDecreasedFrom(int i1, int i2, int i3) {
-    Sample si = _s[i3][i2][i1];
+    int si = index(i1,i2,i3);
     if (!isMarked(si))
       return;
     int nlistener = _listeners.size();
     if (nlistener==0)
       return;
     _stack.clear();
-    _stack.add(si);
+    _stack.push(si);
     while (!_stack.isEmpty()) {
-      si = _stack.remove(_stack.size()-1);
+      si = _stack.pop();
       if (isMarked(si)) {
         unmark(si);
-        i1 = si.i1;
-        i2 = si.i2;
-        i3 = si.i3;
+        i1 = si%_n1;
+        i2 = (si/_n1)%_n2;
+        i3 = si/_n1/_n2;
         float ti = _t[i3][i2][i1];
         for (int i=0; i<nlistener; ++i)
           _listeners.get(i).timeDecreased(i1,i2,i3,ti);
@@ -350,45 +502,56 @@ public class TimeSolver3 {
           int j1 = i1+K1[k];  if (j1<0 || j1>=_n1) continue;
           int j2 = i2+K2[k];  if (j2<0 || j2>=_n2) continue;
           int j3 = i3+K3[k];  if (j3<0 || j3>=_n3) continue;
-          Sample sj = _s[j3][j2][j1];
+          int sj = index(j1,j2,j3);
           if (isMarked(sj))
-            _stack.add(sj);
+            _stack.push(sj);
         }
       }
     }
   }
 
   /**
-   * Zeros the time for the specified sample. Recursively updates times 
-   * for neighbor samples until all times have converged, and then notifies
-   * any listeners of all times decreased.
+   * Zeros the times for the samples in the specified list. Recursively 
+   * updates times for neighbor samples until all times have converged, 
+   * and then notifies any listeners of all times decreased.
    */
-  private void solveFrom(int i1, int i2, int i3) {
+  private void solveFrom(ActiveList zl) {
 
-    // Zero the time for the specified sample.
-    _t[i3][i2][i1] = 0.0f;
+    // Zero the times for the specified samples.
+    int nz = zl.size();
+    for (int i=0; i<nz; ++i) {
+      int s = zl.get(i);
+      _t[s/_n1/_n2][(s/_n1)%_n2][s%_n1] = 0.0f;
+    }
 
-    // Put the sample with zero time into the active list.
+    // Put the samples with zero times into the active list, each sample
+    // no more than once.
     ActiveList al = new ActiveList();
-    Sample si = _s[i3][i2][i1];
-    al.append(si);
+    zl.setAllAbsent();
+    al.appendIfAbsent(zl);
 
-    // Complete the solve by processing the active list until it is empty.
-    if (_concurrency==Concurrency.PARALLEL) {
+    // Complete the solve by processing the active list until it is empty,
+    // or by sweeping until times converge.
+    if (_method==Method.SWEEPING) {
+      solveSweeping();
+    } else if (_concurrency==Concurrency.PARALLEL) {
       solveParallel(al);
     } else {
       solveSerial(al);
     }
 
     // Notify any listeners of all times decreased.
-    fireTimesDecreasedFrom(i1,i2,i3);
+    for (int i=0; i<nz; ++i) {
+      int s = zl.get(i);
+      fireTimesDecreasedFrom(s%_n1,(s/_n1)%_n2,s/_n1/_n2);
+    }
   }
 
   /**
    * Solves for times by sequentially processing each sample in active list.
    */
   private void solveSerial(ActiveList al) {
-    float[] d = new float[6];
+    float[] d = new float[NC];
     ActiveList bl = new ActiveList();
     int ntotal = 0;
     while (!al.isEmpty()) {
@@ -396,7 +559,7 @@ public class TimeSolver3 {
       int n = al.size();
       ntotal += n;
       for (int i=0; i<n; ++i) {
-        Sample s = al.get(i);
+        int s = al.get(i);
         solveOne(s,bl,d);
       }
       bl.setAllAbsent();
@@ -423,14 +586,18 @@ public class TimeSolver3 {
     //nthread = 1; // 1.2 s
     //nthread = 2; // 0.6 s
     /////////////////////////////////////////////////////////////////////////
-    ExecutorService es = Executors.newFixedThreadPool(nthread);
+    ExecutorService es = (_executor!=null)?_executor:getPool();
     CompletionService<Void> cs = new ExecutorCompletionService<Void>(es);
-    ActiveList[] bl = new ActiveList[nthread];
-    float[][] d = new float[nthread][];
-    for (int ithread=0; ithread<nthread; ++ithread) {
-      bl[ithread] = new ActiveList();
-      d[ithread] = new float[6];
+    if (_bl==null || _bl.length<nthread) {
+      _bl = new ActiveList[nthread];
+      _d = new float[nthread][];
+      for (int ithread=0; ithread<nthread; ++ithread) {
+        _bl[ithread] = new ActiveList();
+        _d[ithread] = new float[NC];
+      }
     }
+    ActiveList[] bl = _bl;
+    float[][] d = _d;
     final AtomicInteger ai = new AtomicInteger();
     int ntotal = 0;
     while (!al.isEmpty()) {
@@ -443,26 +610,32 @@ public class TimeSolver3 {
       for (int itask=0; itask<ntask; ++itask) { // for each task, ...
         final ActiveList bltask = bl[itask]; // task-specific B list 
         final float[] dtask = d[itask]; // task-specific work array
-        cs.submit(new Callable<Void>() { // submit new task
-          public Void call() {
+        Runnable task = new Runnable() { // new task
+          public void run() {
             for (int ib=ai.getAndIncrement(); ib<nb; ib=ai.getAndIncrement()) {
               int i = ib*mb; // beginning of block
               int j = min(i+mb,n); // beginning of next block (or end)
               for (int k=i; k<j; ++k) { // for each sample in block, ...
-                Sample s = al.get(k); // get k'th sample from A list
+                int s = al.get(k); // get k'th sample from A list
                 solveOne(s,bltask,dtask); // process the sample
               }
             }
             bltask.setAllAbsent(); // needed when merging B lists below
-            return null;
           }
-        });
+        };
+        if (ntask==1) { // if only one task, run it in this thread
+          task.run();
+        } else {
+          cs.submit(task,null);
+        }
       }
       try {
-        for (int itask=0; itask<ntask; ++itask)
-          cs.take();
+        for (int itask=0; ntask>1 && itask<ntask; ++itask)
+          cs.take().get();
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
       }
 
       // Merge samples from all B lists to a new A list. As samples
@@ -474,25 +647,134 @@ public class TimeSolver3 {
         bl[itask].clear();
       }
     }
-    es.shutdown();
     //trace("solveParallel: ntotal="+ntotal);
     //trace("               nratio="+(float)ntotal/(float)(_n1*_n2*_n3));
   }
 
+  /**
+   * Solves for times by sweeping all samples, with alternating orders, 
+   * until one sweep decreases no time significantly. Each sweep visits
+   * samples one hyperplane i1+i2+i3 = constant at a time, in the order of
+   * the sweep. Samples in one hyperplane are not neighbors, so they are 
+   * updated in parallel, with the same times as for a serial sweep.
+   */
+  private void solveSweeping() {
+    int nthread = (_concurrency==Concurrency.PARALLEL) ?
+      Runtime.getRuntime().availableProcessors() : 1;
+    if (_d==null || _d.length<nthread) {
+      _d = new float[nthread][];
+      for (int ithread=0; ithread<nthread; ++ithread)
+        _d[ithread] = new float[NC];
+    }
+    ExecutorService es = (_executor!=null)?_executor:getPool();
+    CompletionService<Void> cs = new ExecutorCompletionService<Void>(es);
+    AtomicBoolean changed = new AtomicBoolean();
+    int nh = _n1m+_n2m+_n3m+1; // number of hyperplanes
+    int nsweep = 0;
+    do {
+      int s1 = ((nsweep&1)==0)?1:-1; // directions of sweep, alternating
+      int s2 = ((nsweep&2)==0)?1:-1; // among all eight orders
+      int s3 = ((nsweep&4)==0)?1:-1;
+      changed.set(false);
+      for (int ih=0; ih<nh; ++ih)
+        sweepPlane(ih,s1,s2,s3,nthread,cs,changed);
+      ++nsweep;
+    } while (changed.get());
+    //trace("solveSweeping: nsweep="+nsweep);
+  }
+
+  /**
+   * Updates times for all samples in one hyperplane of a sweep.
+   */
+  private void sweepPlane(
+    final int ih, final int s1, final int s2, final int s3,
+    int nthread, CompletionService<Void> cs, final AtomicBoolean changed)
+  {
+    final int j3a = max(0,ih-_n1m-_n2m); // first and last j3 for which
+    final int j3b = min(_n3m,ih); // hyperplane contains samples
+    final AtomicInteger aj = new AtomicInteger(j3a);
+    int ntask = min(j3b-j3a+1,nthread);
+    for (int itask=0; itask<ntask; ++itask) {
+      final float[] dtask = _d[itask];
+      Runnable task = new Runnable() {
+        public void run() {
+          boolean c = false;
+          for (int j3=aj.getAndIncrement(); j3<=j3b; j3=aj.getAndIncrement())
+            c |= sweepRow(ih,j3,s1,s2,s3,dtask);
+          if (c) changed.set(true);
+        }
+      };
+      if (ntask==1) {
+        task.run();
+      } else {
+        cs.submit(task,null);
+      }
+    }
+    try {
+      for (int itask=0; ntask>1 && itask<ntask; ++itask)
+        cs.take().get();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Updates times for samples in one row of a hyperplane of a sweep.
+   * Indices j are those of samples in the order of the sweep.
+   * Returns true, if any time decreased significantly; false, otherwise.
+   */
+  private boolean sweepRow(
+    int ih, int j3, int s1, int s2, int s3, float[] d)
+  {
+    boolean changed = false;
+    int i3 = (s3>0)?j3:_n3m-j3;
+    int j2a = max(0,ih-j3-_n1m);
+    int j2b = min(_n2m,ih-j3);
+    for (int j2=j2a; j2<=j2b; ++j2) {
+      int i2 = (s2>0)?j2:_n2m-j2;
+      int j1 = ih-j3-j2;
+      int i1 = (s1>0)?j1:_n1m-j1;
+      if (!hasNeighborTime(i1,i2,i3)) continue;
+      float ti = _t[i3][i2][i1];
+      float ci = computeTime(i1,i2,i3,K1S[6],K2S[6],K3S[6],d,true);
+      if (ci<ti) {
+        _t[i3][i2][i1] = ci;
+        if (ti-ci>ti*EPSILON)
+          changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Determines whether any neighbor of a sample has a time less than
+   * infinity, so that the time for that sample may be computed.
+   */
+  private boolean hasNeighborTime(int i1, int i2, int i3) {
+    return i1>0    && _t[i3][i2][i1-1]!=INFINITY ||
+           i1<_n1m && _t[i3][i2][i1+1]!=INFINITY ||
+           i2>0    && _t[i3][i2-1][i1]!=INFINITY ||
+           i2<_n2m && _t[i3][i2+1][i1]!=INFINITY ||
+           i3>0    && _t[i3-1][i2][i1]!=INFINITY ||
+           i3<_n3m && _t[i3+1][i2][i1]!=INFINITY;
+  }
+
   /**
    * Processes one sample from the A list.
    * Appends samples not yet converged to the B list.
    */
-  private void solveOne(Sample s, ActiveList bl, float[] d) {
+  private void solveOne(int s, ActiveList bl, float[] d) {
 
     // Sample indices.
-    int i1 = s.i1;
-    int i2 = s.i2;
-    int i3 = s.i3;
+    int i1 = s%_n1;
+    int i2 = (s/_n1)%_n2;
+    int i3 = s/_n1/_n2;
 
     // Current time and new time computed from all neighbors.
     float ti = _t[i3][i2][i1];
-    float ci = computeTime(i1,i2,i3,K1S[6],K2S[6],K3S[6],d);
+    float ci = computeTime(i1,i2,i3,K1S[6],K2S[6],K3S[6],d,false);
     _t[i3][i2][i1] = ci;
 
     // If new and current times are close enough (converged), then ...
@@ -508,7 +790,7 @@ public class TimeSolver3 {
 
         // Compute time for neighbor.
         float tj = _t[j3][j2][j1];
-        float cj = computeTime(j1,j2,j3,K1S[k],K2S[k],K3S[k],d);
+        float cj = computeTime(j1,j2,j3,K1S[k],K2S[k],K3S[k],d,false);
 
         // If computed time does not exceed maximum time and is
         // significantly less than neighbor's current time, ...
@@ -518,7 +800,7 @@ public class TimeSolver3 {
           _t[j3][j2][j1] = cj;
           
           // Append neighbor to the B list.
-          bl.append(_s[j3][j2][j1]);
+          bl.append(s+_ks[k]);
         }
       }
     }
@@ -532,37 +814,20 @@ public class TimeSolver3 {
   /**
    * Returns a time t not greater than the current time for one sample.
    * Computations are limited to neighbor samples with specified offsets.
+   * If least, the time returned is the least time computed from those
+   * neighbors; otherwise, it is the first time less than the current time.
    */
   private float computeTime(
-    int i1, int i2, int i3, int[] k1s, int[] k2s, int[] k3s, float[] d) 
+    int i1, int i2, int i3, int[] k1s, int[] k2s, int[] k3s, float[] d,
+    boolean least) 
   {
-    _tensors.getTensor(i1,i2,i3,d);
-    float d11 = d[0];
-    float d12 = d[1];
-    float d13 = d[2];
-    float d22 = d[3];
-    float d23 = d[4];
-    float d33 = d[5];
-    float o11 = 1.0f/d11;
-    float o22 = 1.0f/d22;
-    float o33 = 1.0f/d33;
-    float d1212 = d12*d12;
-    float d1213 = d12*d13;
-    float d1223 = d12*d23;
-    float d1313 = d13*d13;
-    float d1323 = d13*d23;
-    float d2323 = d23*d23;
-    float a11 = d11-d1313*o33;
-    float a12 = d12-d1323*o33;
-    float a22 = d22-d2323*o33;
-    float b11 = d11-d1212*o22;
-    float b13 = d13-d1223*o22;
-    float b33 = d33-d2323*o22;
-    float c22 = d22-d1212*o11;
-    float c23 = d23-d1213*o11;
-    float c33 = d33-d1313*o11;
-    float e12 = 1.0f/(a11*a22-a12*a12);
-    float e13 = 1.0f/(b11*b33-b13*b13);
+    getCoefficients(i1,i2,i3,d);
+    float d11 = d[ 0], d12 = d[ 1], d13 = d[ 2];
+    float d22 = d[ 3], d23 = d[ 4], d33 = d[ 5];
+    float a11 = d[ 6], a12 = d[ 7], a22 = d[ 8];
+    float b11 = d[ 9], b13 = d[10], b33 = d[11];
+    float c22 = d[12], c23 = d[13], c33 = d[14];
+    float u1 = d[15], u2 = d[16], u3 = d[17];
     float tc = _t[i3][i2][i1];
     float t1m = (i1>0   )?_t[i3][i2][i1-1]:INFINITY;
     float t1p = (i1<_n1m)?_t[i3][i2][i1+1]:INFINITY;
@@ -599,22 +864,152 @@ public class TimeSolver3 {
       } else if (k1!=0) {
         t1 = (k1<0)?t1m:t1p;  if (t1==INFINITY) continue;
         if (t1>_tmax) continue;
-        t0 = t1+sqrt(a22*e12);
+        t0 = t1+u1;
       } else if (k2!=0) {
         t2 = (k2<0)?t2m:t2p;  if (t2==INFINITY) continue;
         if (t2>_tmax) continue;
-        t0 = t2+sqrt(a11*e12);
+        t0 = t2+u2;
       } else { // k3!=0
         t3 = (k3<0)?t3m:t3p;  if (t3==INFINITY) continue;
         if (t3>_tmax) continue;
-        t0 = t3+sqrt(b11*e13);
+        t0 = t3+u3;
+      }
+      if (t0<tc) {
+        if (!least)
+          return t0;
+        tc = t0;
       }
-      if (t0<tc)
-        return t0;
     }
     return tc;
   }
 
+  // Coefficients computed from tensors are cached in bricks of samples.
+  // Each sample has NC coefficients, which are the six tensor elements
+  // d11, d12, d13, d22, d23 and d33; the elements a11, a12 and a22, b11,
+  // b13 and b33, and c22, c23 and c33 of 2D tensors used to compute times
+  // from pairs of neighbors; and the time increments u1, u2 and u3 for
+  // single neighbors in the 1st, 2nd and 3rd dimensions.
+  private static final int NC = 18; // number of coefficients per sample
+  private static final int CACHE_SHIFT = 3; // bricks of 8*8*8 samples
+  private static final int CACHE_SIZE = 1<<CACHE_SHIFT;
+  private static final int CACHE_MASK = CACHE_SIZE-1;
+  private static final int CACHE_BRICK = NC*CACHE_SIZE*CACHE_SIZE*CACHE_SIZE;
+
+  private void initCache() {
+    if (_cacheBytes<4L*CACHE_BRICK) {
+      _cache = null;
+      _cacheStamps = null;
+      _cacheCount = null;
+    } else {
+      _nc1 = 1+(_n1-1)/CACHE_SIZE;
+      _nc2 = 1+(_n2-1)/CACHE_SIZE;
+      _nc3 = 1+(_n3-1)/CACHE_SIZE;
+      int nc = _nc1*_nc2*_nc3;
+      _cache = new AtomicReferenceArray<float[]>(nc);
+      _cacheStamps = new AtomicIntegerArray(nc);
+      _cacheCount = new AtomicInteger();
+    }
+  }
+
+  /**
+   * Gets coefficients for one sample, from the cache, if possible.
+   * The array of coefficients must have length NC.
+   */
+  private void getCoefficients(int i1, int i2, int i3, float[] d) {
+    if (_cache!=null) {
+      int ib = (i1>>CACHE_SHIFT)+_nc1*((i2>>CACHE_SHIFT)+
+                                       _nc2*(i3>>CACHE_SHIFT));
+      float[] c = _cache.get(ib);
+      if (c==null || _cacheStamps.get(ib)!=_cacheStamp)
+        c = cacheBrick(ib,i1,i2,i3,d);
+      if (c!=null) {
+        int j = NC*((i1&CACHE_MASK)+CACHE_SIZE*((i2&CACHE_MASK)+
+                                                CACHE_SIZE*(i3&CACHE_MASK)));
+        for (int k=0; k<NC; ++k)
+          d[k] = c[j+k];
+        return;
+      }
+    }
+    _tensors.getTensor(i1,i2,i3,d);
+    computeCoefficients(d,d,0);
+  }
+
+  /**
+   * Computes coefficients for all samples in the brick that contains one
+   * sample. Returns the brick, or null, if the cache is full. Threads may
+   * compute the same brick concurrently; the coefficients they compute
+   * are the same.
+   */
+  private float[] cacheBrick(int ib, int i1, int i2, int i3, float[] d) {
+    float[] c = _cache.get(ib);
+    if (c==null) {
+      long nbytes = 4L*CACHE_BRICK*(_cacheCount.get()+1);
+      if (nbytes>_cacheBytes)
+        return null;
+      c = new float[CACHE_BRICK];
+      if (_cache.compareAndSet(ib,null,c)) {
+        _cacheCount.incrementAndGet();
+      } else {
+        c = _cache.get(ib);
+      }
+    }
+    int k1 = i1&~CACHE_MASK, j1 = min(k1+CACHE_SIZE,_n1);
+    int k2 = i2&~CACHE_MASK, j2 = min(k2+CACHE_SIZE,_n2);
+    int k3 = i3&~CACHE_MASK, j3 = min(k3+CACHE_SIZE,_n3);
+    for (int m3=k3; m3<j3; ++m3) {
+      for (int m2=k2; m2<j2; ++m2) {
+        for (int m1=k1; m1<j1; ++m1) {
+          int j = NC*((m1-k1)+CACHE_SIZE*((m2-k2)+CACHE_SIZE*(m3-k3)));
+          _tensors.getTensor(m1,m2,m3,d);
+          computeCoefficients(d,c,j);
+        }
+      }
+    }
+    _cacheStamps.set(ib,_cacheStamp);
+    return c;
+  }
+
+  /**
+   * Computes coefficients from tensor elements d[0:5], and puts them into
+   * the array c, beginning at index j. The arrays may be the same.
+   */
+  private static void computeCoefficients(float[] d, float[] c, int j) {
+    float d11 = d[0];
+    float d12 = d[1];
+    float d13 = d[2];
+    float d22 = d[3];
+    float d23 = d[4];
+    float d33 = d[5];
+    float o11 = 1.0f/d11;
+    float o22 = 1.0f/d22;
+    float o33 = 1.0f/d33;
+    float d1212 = d12*d12;
+    float d1213 = d12*d13;
+    float d1223 = d12*d23;
+    float d1313 = d13*d13;
+    float d1323 = d13*d23;
+    float d2323 = d23*d23;
+    float a11 = d11-d1313*o33;
+    float a12 = d12-d1323*o33;
+    float a22 = d22-d2323*o33;
+    float b11 = d11-d1212*o22;
+    float b13 = d13-d1223*o22;
+    float b33 = d33-d2323*o22;
+    float c22 = d22-d1212*o11;
+    float c23 = d23-d1213*o11;
+    float c33 = d33-d1313*o11;
+    float e12 = 1.0f/(a11*a22-a12*a12);
+    float e13 = 1.0f/(b11*b33-b13*b13);
+    c[j   ] = d11; c[j+ 1] = d12; c[j+ 2] = d13;
+    c[j+ 3] = d22; c[j+ 4] = d23; c[j+ 5] = d33;
+    c[j+ 6] = a11; c[j+ 7] = a12; c[j+ 8] = a22;
+    c[j+ 9] = b11; c[j+10] = b13; c[j+11] = b33;
+    c[j+12] = c22; c[j+13] = c23; c[j+14] = c33;
+    c[j+15] = sqrt(a22*e12);
+    c[j+16] = sqrt(a11*e12);
+    c[j+17] = sqrt(b11*e13);
+  }
+
   /**
    * Solves a 3D anisotropic eikonal equation for a positive time t0.
    * The equation is:
@@ -746,13 +1141,35 @@ public class TimeSolver3 {
       n1,n2,n3,i1,i2,i3,tensors,TimeSolver3.Concurrency.PARALLEL);
   }
 
+  private static float[][][] computeSweeping(
+    int n1, int n2, int n3,
+    int i1, int i2, int i3, 
+    Tensors3 tensors)
+  {
+    trace("computeSweeping:");
+    return computeTimes(
+      n1,n2,n3,i1,i2,i3,tensors,TimeSolver3.Concurrency.PARALLEL,
+      TimeSolver3.Method.SWEEPING);
+  }
+
   private static float[][][] computeTimes(
     int n1, int n2, int n3,
     int i1, int i2, int i3, 
     Tensors3 tensors, TimeSolver3.Concurrency concurrency) 
+  {
+    return computeTimes(
+      n1,n2,n3,i1,i2,i3,tensors,concurrency,TimeSolver3.Method.ITERATIVE);
+  }
+
+  private static float[][][] computeTimes(
+    int n1, int n2, int n3,
+    int i1, int i2, int i3, 
+    Tensors3 tensors, TimeSolver3.Concurrency concurrency,
+    TimeSolver3.Method method) 
   {
     TimeSolver3 ts = new TimeSolver3(n1,n2,n3,tensors);
     ts.setConcurrency(concurrency);
+    ts.setMethod(method);
     Stopwatch sw = new Stopwatch();
     sw.start();
     ts.zeroAt(i1,i2,i3);
@@ -772,15 +1189,20 @@ public class TimeSolver3 {
     int i1 = 2*(n1-1)/4, i2 = 2*(n2-1)/4, i3 = 2*(n3-1)/4;
     float[][][] ts = computeSerial(n1,n2,n3,i1,i2,i3,tensors);
     float[][][] tp = computeParallel(n1,n2,n3,i1,i2,i3,tensors);
+    float[][][] tw = computeSweeping(n1,n2,n3,i1,i2,i3,tensors);
     float[][][] te = div(abs(sub(tp,ts)),ts);
     te[i3][i2][i1] = 0.0f;
     float temax = max(te);
     trace("temax="+temax);
+    float[][][] tf = div(abs(sub(tw,ts)),ts);
+    tf[i3][i2][i1] = 0.0f;
+    float tfmax = max(tf);
+    trace("tfmax="+tfmax);
     trace("********************************************************");
     //plot(ts,ColorMap.PRISM);
     //plot(tp,ColorMap.PRISM);
     //plot(te,ColorMap.JET);
-    if (temax>0.1f)
+    if (temax>0.1f || tfmax>0.1f)
       System.exit(-1);
   }
 
@@ -0,0 +1,460 @@
+/****************************************************************************
+Copyright (c) 2010, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package cae.vis;
+
+import edu.mines.jtk.dsp.Sampling;
+import edu.mines.jtk.util.Parallel;
+
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * The flying edges algorithm (Schroeder, Maynard and Geveci, 2015).
+ * An alternative to the classic marching cubes in {@link MarchingCubes},
+ * using the same table of triangles for each case, and producing the same
+ * vertices and triangles, but in a different order.
+ * <p>
+ * Computation proceeds in four passes over rows of samples aligned with
+ * the 1st dimension, each of which may be performed in parallel. (1) Edges
+ * along each row are classified, and the row is trimmed to the range of
+ * samples containing intersected edges. (2) For each row, intersected
+ * edges aligned with the 2nd and 3rd dimensions, and triangles in the row
+ * of cubes, are counted, using trims to skip ranges of samples that cannot
+ * contain intersections. (3) Counts are summed to obtain offsets, so that
+ * output arrays can be allocated with exact sizes. (4) Vertices and
+ * triangles are computed and stored at those offsets.
+ * <p>
+ * Each vertex is computed once by the row that owns its edge. Scratch
+ * memory is proportional to the number of rows, n2*n3.
+ * @author Chris Engelsma, Colorado School of Mines
+ * @version 2010.12.10
+ */
+class FlyingEdges {
+
+  /**
+   * Constructs a flying edges algorithm.
+   * @param s1 sampling of the 1st dimension.
+   * @param s2 sampling of the 2nd dimension.
+   * @param s3 sampling of the 3rd dimension.
+   * @param normals true, if computing normals; false, otherwise.
+   * @param swap13 true, if swapping the 1st and 3rd dimensions.
+   * @param parallel true, if rows are processed in parallel.
+   * @param g cached gradients for normal vectors; null, if none.
+   */
+  FlyingEdges(
+    Sampling s1, Sampling s2, Sampling s3,
+    boolean normals, boolean swap13, boolean parallel, Gradients g)
+  {
+    n1 = s1.getCount(); d1 = s1.getDelta(); f1 = s1.getFirst();
+    n2 = s2.getCount(); d2 = s2.getDelta(); f2 = s2.getFirst();
+    n3 = s3.getCount(); d3 = s3.getDelta(); f3 = s3.getFirst();
+    _normals = normals;
+    _swap13 = swap13;
+    _parallel = parallel;
+    _g = g;
+  }
+
+  /**
+   * Gets a 3D contour.
+   * @param f the 3D image.
+   * @param c the isovalue to extract.
+   * @return the contour.
+   */
+  Contour getContour(float[][][] f, float c) {
+    _f = f;
+    _c = c;
+    int nr = n2*n3;
+    _xl = new int[nr];
+    _xr = new int[nr];
+    _nx = new int[nr];
+    _ny = new int[nr];
+    _ox = new int[nr+1];
+    _ot = new int[nr+1];
+
+    // Pass 1: classify and trim rows.
+    loop(nr,new Parallel.LoopInt() {
+      public void compute(int r) {
+        trimRow(r);
+      }
+    });
+
+    // Pass 2: count vertices and triangles for each row.
+    loop(nr,new Parallel.LoopInt() {
+      public void compute(int r) {
+        countRow(r);
+      }
+    });
+
+    // Pass 3: offsets for vertices and triangles of each row.
+    for (int r=0; r<nr; ++r) {
+      _ox[r+1] += _ox[r];
+      _ot[r+1] += _ot[r];
+    }
+    _contour = new Contour();
+    _contour.x = new float[3*_ox[nr]];
+    _contour.u = _normals?new float[3*_ox[nr]]:null;
+    _contour.i = new int[_ot[nr]];
+
+    // Pass 4: compute vertices and triangles for each row.
+    loop(nr,new Parallel.LoopInt() {
+      public void compute(int r) {
+        fillRow(r);
+      }
+    });
+
+    Contour contour = _contour;
+    _contour = null;
+    _f = null;
+    _xl = _xr = _nx = _ny = _ox = _ot = null;
+    return contour;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private int n1,n2,n3;
+  private double d1,d2,d3;
+  private double f1,f2,f3;
+  private boolean _normals,_swap13,_parallel;
+  private Gradients _g;
+  private float[][][] _f;
+  private float _c;
+  private Contour _contour;
+
+  // For each row r = i2+i3*n2 of samples: trim [xl,xr] such that samples
+  // with indices i1<=xl and i1>=xr have constant classification; numbers
+  // of vertices on edges aligned with the 1st and 2nd dimensions; and
+  // offsets of the first vertex and triangle index for the row.
+  private int[] _xl,_xr;
+  private int[] _nx,_ny;
+  private int[] _ox,_ot;
+
+  private void loop(int n, Parallel.LoopInt body) {
+    if (_parallel && n>0) {
+      Parallel.loop(n,body);
+    } else {
+      for (int i=0; i<n; ++i)
+        body.compute(i);
+    }
+  }
+
+  /*
+   * Pass 1. Counts intersected edges aligned with the 1st dimension in
+   * one row, and computes the trim for that row. If none are intersected,
+   * the trim is [n1,0].
+   */
+  private void trimRow(int r) {
+    float[] fa = _f[r/n2][r%n2];
+    float c = _c;
+    int xl = n1, xr = 0, nx = 0;
+    boolean bj = fa[0]>c;
+    for (int i1=0; i1<n1-1; ++i1) {
+      boolean bk = fa[i1+1]>c;
+      if (bj!=bk) {
+        if (nx==0) xl = i1;
+        xr = i1+1;
+        ++nx;
+      }
+      bj = bk;
+    }
+    _xl[r] = xl;
+    _xr[r] = xr;
+    _nx[r] = nx;
+  }
+
+  /*
+   * Pass 2. Counts intersected edges aligned with the 2nd and 3rd
+   * dimensions owned by one row, and triangles in the row of cubes.
+   */
+  private void countRow(int r) {
+    int i2 = r%n2, i3 = r/n2;
+    int[] ranges = new int[6];
+    int ny = 0, nz = 0, nt = 0;
+    if (i2<n2-1) {
+      int nrange = crossRanges(r,r+1,ranges);
+      ny = countCrossings(_f[i3][i2],_f[i3][i2+1],nrange,ranges);
+    }
+    if (i3<n3-1) {
+      int nrange = crossRanges(r,r+n2,ranges);
+      nz = countCrossings(_f[i3][i2],_f[i3+1][i2],nrange,ranges);
+    }
+    if (i2<n2-1 && i3<n3-1 && cubeTrim(i2,i3,ranges)) {
+      float[] fa = _f[i3  ][i2  ], fb = _f[i3  ][i2+1];
+      float[] fc = _f[i3+1][i2  ], fd = _f[i3+1][i2+1];
+      for (int i1=ranges[0]; i1<ranges[1]; ++i1)
+        nt += MarchingCubes._edges[cubeCase(fa,fb,fc,fd,i1)].length;
+    }
+    _ny[r] = ny;
+    _ox[r+1] = _nx[r]+ny+nz;
+    _ot[r+1] = nt;
+  }
+
+  /*
+   * Computes ranges [ja,jb) of samples that may have intersected edges
+   * between rows ra and rb. Outside the union of trims for the two rows,
+   * classifications are constant in each row, so that either all or none
+   * of those edges are intersected. Returns the number of ranges.
+   */
+  private int crossRanges(int ra, int rb, int[] ranges) {
+    float[] fa = _f[ra/n2][ra%n2];
+    float[] fb = _f[rb/n2][rb%n2];
+    float c = _c;
+    int lo = min(_xl[ra],_xl[rb]);
+    int hi = max(_xr[ra],_xr[rb]);
+    int n = 0;
+    if (lo>hi) {
+      if ((fa[0]>c)!=(fb[0]>c)) {
+        ranges[n++] = 0;
+        ranges[n++] = n1;
+      }
+      return n/2;
+    }
+    if (lo>0 && (fa[0]>c)!=(fb[0]>c)) {
+      ranges[n++] = 0;
+      ranges[n++] = lo;
+    }
+    ranges[n++] = lo;
+    ranges[n++] = hi+1;
+    if (hi<n1-1 && (fa[n1-1]>c)!=(fb[n1-1]>c)) {
+      ranges[n++] = hi+1;
+      ranges[n++] = n1;
+    }
+    return n/2;
+  }
+
+  /*
+   * Counts intersected edges between two rows within ranges of samples.
+   */
+  private int countCrossings(
+    float[] fa, float[] fb, int nrange, int[] ranges)
+  {
+    float c = _c;
+    int n = 0;
+    for (int ir=0; ir<nrange; ++ir) {
+      for (int i1=ranges[2*ir]; i1<ranges[2*ir+1]; ++i1) {
+        if ((fa[i1]>c)!=(fb[i1]>c)) ++n;
+      }
+    }
+    return n;
+  }
+
+  /*
+   * Computes the range [ia,ib) of cubes in the row of cubes with indices
+   * (i2,i3) that may be intersected. Cubes outside the union of trims of
+   * the four rows of samples all have the same case, so that the range is
+   * extended to the ends of the row if that case has triangles. Returns
+   * false, if no cube in the row is intersected.
+   */
+  private boolean cubeTrim(int i2, int i3, int[] range) {
+    if (n1<2) return false;
+    int ra = i2+i3*n2, rb = ra+1, rc = ra+n2, rd = rc+1;
+    float[] fa = _f[i3  ][i2  ], fb = _f[i3  ][i2+1];
+    float[] fc = _f[i3+1][i2  ], fd = _f[i3+1][i2+1];
+    int lo = min(min(_xl[ra],_xl[rb]),min(_xl[rc],_xl[rd]));
+    int hi = max(max(_xr[ra],_xr[rb]),max(_xr[rc],_xr[rd]));
+    if (lo>hi) {
+      if (!intersected(cubeCase(fa,fb,fc,fd,0))) return false;
+      lo = 0;
+      hi = n1-1;
+    } else {
+      if (lo>0 && intersected(cubeCase(fa,fb,fc,fd,0)))
+        lo = 0;
+      if (hi<n1-1 && intersected(cubeCase(fa,fb,fc,fd,n1-2)))
+        hi = n1-1;
+    }
+    range[0] = lo;
+    range[1] = hi;
+    return lo<hi;
+  }
+
+  private static boolean intersected(int ci) {
+    return ci>0 && ci<255;
+  }
+
+  /*
+   * Case index for the cube with index i1 in the row of cubes bounded by
+   * rows of samples fa, fb (next in 2nd dimension), fc (next in 3rd) and
+   * fd (next in both). Corners are numbered as in marching cubes.
+   */
+  private int cubeCase(
+    float[] fa, float[] fb, float[] fc, float[] fd, int i1)
+  {
+    float c = _c;
+    int ci = 0;
+    if (fa[i1  ]>c) ci +=   1;
+    if (fa[i1+1]>c) ci +=   2;
+    if (fb[i1+1]>c) ci +=   4;
+    if (fb[i1  ]>c) ci +=   8;
+    if (fc[i1  ]>c) ci +=  16;
+    if (fc[i1+1]>c) ci +=  32;
+    if (fd[i1+1]>c) ci +=  64;
+    if (fd[i1  ]>c) ci += 128;
+    return ci;
+  }
+
+  /*
+   * Pass 4. Computes vertices owned by one row, and triangles in the row
+   * of cubes. Vertices of each row are numbered from the offset for that
+   * row, first those on edges aligned with the 1st dimension, then the
+   * 2nd, then the 3rd, each in order of increasing sample index i1.
+   */
+  private void fillRow(int r) {
+    int i2 = r%n2, i3 = r/n2;
+    float[] u = new float[3];
+    int[] ranges = new int[6];
+    float c = _c;
+    float[][][] f = _f;
+    float[] fa = f[i3][i2];
+
+    // Vertices on edges aligned with the 1st dimension.
+    int ix = _ox[r];
+    for (int i1=_xl[r]; i1<_xr[r]; ++i1) {
+      if ((fa[i1]>c)!=(fa[i1+1]>c))
+        addVertex(ix++,i1,i2,i3,0,fa[i1],fa[i1+1],u);
+    }
+
+    // Vertices on edges aligned with the 2nd dimension.
+    if (i2<n2-1) {
+      float[] fb = f[i3][i2+1];
+      int nrange = crossRanges(r,r+1,ranges);
+      for (int ir=0; ir<nrange; ++ir) {
+        for (int i1=ranges[2*ir]; i1<ranges[2*ir+1]; ++i1) {
+          if ((fa[i1]>c)!=(fb[i1]>c))
+            addVertex(ix++,i1,i2,i3,1,fa[i1],fb[i1],u);
+        }
+      }
+    }
+
+    // Vertices on edges aligned with the 3rd dimension.
+    if (i3<n3-1) {
+      float[] fc = f[i3+1][i2];
+      int nrange = crossRanges(r,r+n2,ranges);
+      for (int ir=0; ir<nrange; ++ir) {
+        for (int i1=ranges[2*ir]; i1<ranges[2*ir+1]; ++i1) {
+          if ((fa[i1]>c)!=(fc[i1]>c))
+            addVertex(ix++,i1,i2,i3,2,fa[i1],fc[i1],u);
+        }
+      }
+    }
+
+    // Triangles in the row of cubes. Counters track the index of the next
+    // vertex on edges aligned with each dimension in rows a, b, c and d;
+    // no edges in these rows are intersected before the first cube.
+    if (i2==n2-1 || i3==n3-1 || !cubeTrim(i2,i3,ranges)) return;
+    int ra = r, rb = r+1, rc = r+n2, rd = rc+1;
+    float[] fb = f[i3][i2+1], fc = f[i3+1][i2], fd = f[i3+1][i2+1];
+    int xa = _ox[ra], xb = _ox[rb], xc = _ox[rc], xd = _ox[rd];
+    int ya = _ox[ra]+_nx[ra], yc = _ox[rc]+_nx[rc];
+    int za = ya+_ny[ra], zb = _ox[rb]+_nx[rb]+_ny[rb];
+    int[] t = _contour.i;
+    int it = _ot[r];
+    for (int i1=ranges[0]; i1<ranges[1]; ++i1) {
+      boolean a0 = fa[i1]>c, a1 = fa[i1+1]>c;
+      boolean b0 = fb[i1]>c, b1 = fb[i1+1]>c;
+      boolean c0 = fc[i1]>c, c1 = fc[i1+1]>c;
+      boolean d0 = fd[i1]>c, d1 = fd[i1+1]>c;
+      int ci = (a0?1:0)|(a1?2:0)|(b1?4:0)|(b0?8:0)|
+               (c0?16:0)|(c1?32:0)|(d1?64:0)|(d0?128:0);
+      if (intersected(ci)) {
+        int[] edges = MarchingCubes._edges[ci];
+        for (int ie=0; ie<edges.length; ++ie) {
+          int jx;
+          switch(edges[ie]) {
+          case 0: // 0->1
+            jx = xa;
+            break;
+          case 1: // 1->2
+            jx = ya+((a0!=b0)?1:0);
+            break;
+          case 2: // 3->2
+            jx = xb;
+            break;
+          case 3: // 0->3
+            jx = ya;
+            break;
+          case 4: // 4->5
+            jx = xc;
+            break;
+          case 5: // 5->6
+            jx = yc+((c0!=d0)?1:0);
+            break;
+          case 6: // 7->6
+            jx = xd;
+            break;
+          case 7: // 4->7
+            jx = yc;
+            break;
+          case 8: // 0->4
+            jx = za;
+            break;
+          case 9: // 1->5
+            jx = za+((a0!=c0)?1:0);
+            break;
+          case 10: // 3->7
+            jx = zb;
+            break;
+          default: // 2->6
+            jx = zb+((b0!=d0)?1:0);
+          }
+          t[it++] = jx;
+        }
+      }
+      if (a0!=a1) ++xa;
+      if (b0!=b1) ++xb;
+      if (c0!=c1) ++xc;
+      if (d0!=d1) ++xd;
+      if (a0!=b0) ++ya;
+      if (c0!=d0) ++yc;
+      if (a0!=c0) ++za;
+      if (b0!=d0) ++zb;
+    }
+  }
+
+  /*
+   * Computes and stores coordinates of the vertex with index ix on the
+   * edge from sample j to sample k, and optionally its normal vector.
+   */
+  private void addVertex(
+    int ix, int j1, int j2, int j3, int kk, float cj, float ck, float[] u)
+  {
+    int k1 = j1, k2 = j2, k3 = j3;
+    double x1 = f1+d1*j1;
+    double x2 = f2+d2*j2;
+    double x3 = f3+d3*j3;
+    float dx = (_c-cj)/(ck-cj);
+    switch(kk) {
+    case 0: // edge aligned with axis 1
+      k1 = j1+1;
+      x1 = f1+d1*(j1+dx);
+      break;
+    case 1: // edge aligned with axis 2
+      k2 = j2+1;
+      x2 = f2+d2*(j2+dx);
+      break;
+    default: // edge aligned with axis 3
+      k3 = j3+1;
+      x3 = f3+d3*(j3+dx);
+    }
+    int i = 3*ix;
+    float[] x = _contour.x;
+    x[i  ] = (float)(_swap13?x3:x1);
+    x[i+1] = (float)x2;
+    x[i+2] = (float)(_swap13?x1:x3);
+    if (_normals) {
+      if (_g!=null) {
+        _g.computeNormalVector(j1,j2,j3,k1,k2,k3,d1,d2,d3,dx,u);
+      } else {
+        MarchingCubes.computeNormalVector(j1,j2,j3,k1,k2,k3,
+                                          n1,n2,n3,d1,d2,d3,
+                                          dx,_f,u);
+      }
+      float[] un = _contour.u;
+      un[i  ] = _swap13?u[2]:u[0];
+      un[i+1] = u[1];
+      un[i+2] = _swap13?u[0]:u[2];
+    }
+  }
+}
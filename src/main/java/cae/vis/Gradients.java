@@ -0,0 +1,140 @@
+/****************************************************************************
+Copyright (c) 2010, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package cae.vis;
+
+import edu.mines.jtk.util.Parallel;
+
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * Gradients of a 3D image, for normal vectors of contours.
+ * Gradients are computed once for all samples, with centered finite
+ * differences (one-sided at image bounds), and then reused for every
+ * vertex and contour, so that a normal vector is computed with only two
+ * reads from memory, instead of twelve. Normal vectors so computed are
+ * identical to those computed directly from image values.
+ * <p>
+ * Differences are not scaled by sampling intervals. Components for each
+ * sample are stored contiguously, so this cache requires three times the
+ * memory of the image.
+ * @author Chris Engelsma, Colorado School of Mines
+ * @version 2010.12.10
+ */
+class Gradients {
+
+  /**
+   * Constructs gradients for the specified image.
+   * @param f the 3D image.
+   */
+  Gradients(float[][][] f) {
+    n3 = f.length;
+    n2 = f[0].length;
+    n1 = f[0][0].length;
+    _g = new float[n3][n2][3*n1];
+    update(f,0,0,0,n1-1,n2-1,n3-1);
+  }
+
+  /**
+   * Determines whether these gradients have the dimensions of an image.
+   * @param n1 number of samples in 1st dimension.
+   * @param n2 number of samples in 2nd dimension.
+   * @param n3 number of samples in 3rd dimension.
+   * @return true, if dimensions are the same; false, otherwise.
+   */
+  boolean fits(int n1, int n2, int n3) {
+    return this.n1==n1 && this.n2==n2 && this.n3==n3;
+  }
+
+  /**
+   * Updates gradients after image values in a box of samples have changed.
+   * Gradients for samples adjacent to the box are updated as well.
+   * @param f the 3D image.
+   * @param k1 the lower bound of changed samples in the 1st dimension.
+   * @param k2 the lower bound of changed samples in the 2nd dimension.
+   * @param k3 the lower bound of changed samples in the 3rd dimension.
+   * @param j1 the upper bound of changed samples in the 1st dimension.
+   * @param j2 the upper bound of changed samples in the 2nd dimension.
+   * @param j3 the upper bound of changed samples in the 3rd dimension.
+   */
+  void update(
+    float[][][] f, int k1, int k2, int k3, int j1, int j2, int j3)
+  {
+    final float[][][] ff = f;
+    final int i1a = max(0,k1-1), i1b = min(n1-1,j1+1);
+    final int i2a = max(0,k2-1), i2b = min(n2-1,j2+1);
+    int i3a = max(0,k3-1), i3b = min(n3-1,j3+1);
+    if (i1a>i1b || i2a>i2b || i3a>i3b) return;
+    Parallel.loop(i3a,i3b+1,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        for (int i2=i2a; i2<=i2b; ++i2)
+          updateRow(ff,i1a,i1b,i2,i3);
+      }
+    });
+  }
+
+  /**
+   * Computes a normal vector for a vertex on the edge from sample j to k.
+   * @param j1 index in 1st dimension of sample j.
+   * @param j2 index in 2nd dimension of sample j.
+   * @param j3 index in 3rd dimension of sample j.
+   * @param k1 index in 1st dimension of sample k.
+   * @param k2 index in 2nd dimension of sample k.
+   * @param k3 index in 3rd dimension of sample k.
+   * @param d1 sampling interval in 1st dimension.
+   * @param d2 sampling interval in 2nd dimension.
+   * @param d3 sampling interval in 3rd dimension.
+   * @param dx fractional distance of the vertex from sample j.
+   * @param u array[3] for the computed unit normal vector.
+   */
+  void computeNormalVector(
+    int j1, int j2, int j3, int k1, int k2, int k3,
+    double d1, double d2, double d3, double dx, float[] u)
+  {
+    float[] gj = _g[j3][j2];
+    float[] gk = _g[k3][k2];
+    int j = 3*j1, k = 3*k1;
+    double u1 = gj[j  ], v1 = gk[k  ];
+    double u2 = gj[j+1], v2 = gk[k+1];
+    double u3 = gj[j+2], v3 = gk[k+2];
+    u1 = (u1+(v1-u1)*dx)/d1;
+    u2 = (u2+(v2-u2)*dx)/d2;
+    u3 = (u3+(v3-u3)*dx)/d3;
+    double us = 1.0/sqrt(u1*u1+u2*u2+u3*u3);
+    u[0] = (float)(u1*us);
+    u[1] = (float)(u2*us);
+    u[2] = (float)(u3*us);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private int n1,n2,n3;
+  private float[][][] _g; // gradient components for all samples
+
+  /*
+   * Computes gradients for samples i1a to i1b in one row. Centered
+   * differences are halved in float precision, which is exact, so that
+   * normal vectors equal those computed directly from image values.
+   */
+  private void updateRow(float[][][] f, int i1a, int i1b, int i2, int i3) {
+    float[] f0 = f[i3][i2];
+    float[] f2m = f[i3][max(0,i2-1)];
+    float[] f2p = f[i3][min(n2-1,i2+1)];
+    float[] f3m = f[max(0,i3-1)][i2];
+    float[] f3p = f[min(n3-1,i3+1)][i2];
+    float s2 = (i2==0 || i2==n2-1)?1.0f:0.5f;
+    float s3 = (i3==0 || i3==n3-1)?1.0f:0.5f;
+    float[] g = _g[i3][i2];
+    for (int i1=i1a,i=3*i1a; i1<=i1b; ++i1,i+=3) {
+      int i1m = max(0,i1-1), i1p = min(n1-1,i1+1);
+      float s1 = (i1==0 || i1==n1-1)?1.0f:0.5f;
+      g[i  ] = (f0[i1p]-f0[i1m])*s1;
+      g[i+1] = (f2p[i1]-f2m[i1])*s2;
+      g[i+2] = (f3p[i1]-f3m[i1])*s3;
+    }
+  }
+}
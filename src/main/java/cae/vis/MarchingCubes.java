@@ -6,11 +6,15 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 ****************************************************************************/
 package cae.vis;
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import edu.mines.jtk.dsp.Sampling;
 import edu.mines.jtk.util.Parallel;
 
-import java.util.HashMap;
-
 import static edu.mines.jtk.util.ArrayMath.*;
 
 /**
@@ -28,6 +32,199 @@ public class MarchingCubes {
     SERIAL
   };
 
+  /**
+   * The algorithm used to extract contours from an image.
+   * Both algorithms produce the same vertices and triangles, in different
+   * orders. The classic marching cubes algorithm marches one slab of cubes
+   * at a time. The flying edges algorithm processes rows of samples in
+   * several passes, computes each vertex only once, and allocates output
+   * arrays with exact sizes; it is typically faster on many cores.
+   */
+  public enum Algorithm {
+    MARCHING_CUBES,
+    FLYING_EDGES
+  };
+
+  /**
+   * A source of image values, read one plane at a time.
+   * Planes are requested in increasing order of index i3, and each plane
+   * is requested at most a few times.
+   */
+  public interface PlaneSource {
+
+    /**
+     * Reads the specified plane of image values.
+     * @param i3 the index in the 3rd dimension of the plane.
+     * @param p array[n2][n1] to be filled with image values.
+     */
+    public void readPlane(int i3, float[][] p);
+  }
+
+  /**
+   * A consumer of the vertices and triangles of a streamed contour.
+   * Vertices and triangles are passed in chunks, one chunk per slab.
+   * Triangles reference vertices by their global index, and may reference
+   * vertices that will be passed with the next chunk.
+   */
+  public interface ContourSink {
+
+    /**
+     * Accepts a chunk of vertices.
+     * @param nx the number of vertices.
+     * @param x array of packed vertex coordinates; only the first 3*nx
+     *  values are valid.
+     * @param u array of packed normal vectors; only the first 3*nx values
+     *  are valid; null, if not computing normals.
+     */
+    public void addVertices(int nx, float[] x, float[] u);
+
+    /**
+     * Accepts a chunk of triangles.
+     * @param nt the number of triangles.
+     * @param i array of packed vertex indices; only the first 3*nt values
+     *  are valid.
+     */
+    public void addTriangles(int nt, int[] i);
+  }
+
+  /**
+   * A contour sink that accumulates a contour in memory.
+   * A buffer may be cleared and reused for many contours. Its arrays are
+   * then grown only as needed, so that repeated extraction of contours of
+   * similar size allocates no memory.
+   */
+  public static class ContourBuffer implements ContourSink {
+    public void addVertices(int nx, float[] x, float[] u) {
+      int n = 3*_nx;
+      int m = 3*nx;
+      _x = grow(_x,n+m);
+      System.arraycopy(x,0,_x,n,m);
+      if (u!=null) {
+        _u = grow(_u,n+m);
+        System.arraycopy(u,0,_u,n,m);
+      }
+      _nu = u!=null;
+      _nx += nx;
+    }
+    public void addTriangles(int nt, int[] i) {
+      int n = 3*_nt;
+      int m = 3*nt;
+      if (n+m>_i.length) {
+        int[] t = new int[max(n+m,2*_i.length)];
+        System.arraycopy(_i,0,t,0,n);
+        _i = t;
+      }
+      System.arraycopy(i,0,_i,n,m);
+      _nt += nt;
+    }
+
+    /**
+     * Removes all vertices and triangles from this buffer.
+     * Arrays are retained for reuse.
+     */
+    public void clear() {
+      _nx = 0;
+      _nt = 0;
+      _nu = false;
+    }
+
+    /**
+     * Gets the number of vertices in this buffer.
+     * @return the number of vertices.
+     */
+    public int getVertexCount() {
+      return _nx;
+    }
+
+    /**
+     * Gets the number of triangles in this buffer.
+     * @return the number of triangles.
+     */
+    public int getTriangleCount() {
+      return _nt;
+    }
+
+    /**
+     * Gets the array of packed vertex coordinates.
+     * The array is not copied; only the first 3*nx values are valid.
+     * @return array of packed vertex coordinates.
+     */
+    public float[] getVertices() {
+      return _x;
+    }
+
+    /**
+     * Gets the array of packed normal vectors.
+     * The array is not copied; only the first 3*nx values are valid.
+     * @return array of packed normal vectors; null, if none.
+     */
+    public float[] getNormals() {
+      return _nu?_u:null;
+    }
+
+    /**
+     * Gets the array of packed triangle vertex indices.
+     * The array is not copied; only the first 3*nt values are valid.
+     * @return array of packed triangle vertex indices.
+     */
+    public int[] getTriangles() {
+      return _i;
+    }
+
+    /**
+     * Gets a copy of the accumulated contour.
+     * @return the contour.
+     */
+    public Contour getContour() {
+      Contour contour = new Contour();
+      contour.x = copy(3*_nx,_x);
+      contour.u = _nu?copy(3*_nx,_u):null;
+      contour.i = copy(3*_nt,_i);
+      return contour;
+    }
+
+    private float[] _x = new float[0];
+    private float[] _u = new float[0];
+    private int[] _i = new int[0];
+    private int _nx,_nt;
+    private boolean _nu;
+
+    private float[] grow(float[] a, int n) {
+      if (n<=a.length) return a;
+      float[] t = new float[max(n,2*a.length)];
+      System.arraycopy(a,0,t,0,3*_nx);
+      return t;
+    }
+  }
+
+  /**
+   * A connected component of a contour.
+   * Two triangles are connected if they share a vertex.
+   */
+  public static class Component {
+
+    /**
+     * The contour of this component, with its own vertices.
+     */
+    public Contour contour;
+
+    /**
+     * The number of triangles in this component.
+     */
+    public int nt;
+
+    /**
+     * The area of this component.
+     */
+    public double area;
+
+    /**
+     * Bounds of this component, packed as (x1min,x2min,x3min,x1max,x2max,
+     * x3max). Coordinates are those of vertices in the contour.
+     */
+    public float[] bounds;
+  }
+
   /**
    * Constructs a new marching cubes dataset.
    * Note: This construction assumes even sampling.
@@ -64,6 +261,42 @@ public class MarchingCubes {
     _s1 = s1;
     _s2 = s2;
     _s3 = s3;
+    _bmin = null;
+    _bmax = null;
+    _clast = Float.NaN;
+  }
+
+  /**
+   * Sets the image for this marching cubes dataset.
+   * This method must be called again if values of the current image are
+   * modified, so that any information cached for that image is discarded,
+   * unless the modified values are instead passed to {@link
+   * #updateContour(float,int,int,int,int,int,int)}.
+   * @param f 3D array of image values.
+   */
+  public void setImage(float[][][] f) {
+    _f = f;
+    _bmin = null;
+    _bmax = null;
+    _grad = null;
+    _clast = Float.NaN;
+  }
+
+  /**
+   * Sets whether to use a block min/max index of image values.
+   * The index is built when first needed and kept for all subsequent
+   * contours of the same image. Only blocks of cubes with values that span
+   * an isovalue are then marched, so that the cost of repeated extraction
+   * grows with the size of the contour, not the size of the image.
+   * The default is false.
+   * @param index true, if using the index; false, otherwise.
+   */
+  public void setBlockIndex(boolean index) {
+    _index = index;
+    if (!index) {
+      _bmin = null;
+      _bmax = null;
+    }
   }
 
   /**
@@ -74,6 +307,21 @@ public class MarchingCubes {
     _normals = normals;
   }
 
+  /**
+   * Sets whether to cache gradients of image values for normal vectors.
+   * Gradients are computed when first needed and kept for all subsequent
+   * contours of the same image, so that the cost of computing normal
+   * vectors is much less, but memory required is that of three images.
+   * Normal vectors are the same with or without the cache.
+   * The default is false.
+   * @param cache true, if caching gradients; false, otherwise.
+   */
+  public void setGradientCache(boolean cache) {
+    _gcache = cache;
+    if (!cache)
+      _grad = null;
+  }
+
   /**
    * Swaps the first and third dimension.
    * @param swap13 true, if swapping; false, otherwise.
@@ -82,6 +330,18 @@ public class MarchingCubes {
     _swap13 = swap13;
   }
 
+  /**
+   * Sets the algorithm used to extract contours.
+   * The block index, and scratch buffers retained between contours, are
+   * used only by the marching cubes algorithm; the streaming methods, and
+   * contours for more than one isovalue, always use marching cubes.
+   * The default is marching cubes.
+   * @param algorithm the algorithm.
+   */
+  public void setAlgorithm(Algorithm algorithm) {
+    _algorithm = algorithm;
+  }
+
   /**
    * Sets the concurrency of this marching cubes.
    * @param concurrency the concurrency.
@@ -96,88 +356,322 @@ public class MarchingCubes {
    * @return a 3D contour.
    */
   public Contour getContour(float c) {
-    n1 = _s1.getCount();
-    n2 = _s2.getCount();
-    n3 = _s3.getCount();
+    return getContours(new float[]{c})[0];
+  }
 
-    d1 = _s1.getDelta();
-    d2 = _s2.getDelta();
-    d3 = _s3.getDelta();
+  /**
+   * Gets 3D contours for multiple isovalues from this image.
+   * The image is marched only once, one slab at a time, and all contours
+   * are extracted from each slab before proceeding to the next. This is
+   * more efficient than calling {@link #getContour(float)} for each
+   * isovalue. Because flying edges extracts only one contour per pass
+   * over the image, it is used only for a single isovalue; multiple
+   * isovalues are always extracted with marching cubes.
+   * @param c array of isovalues to extract.
+   * @return array of 3D contours, one for each isovalue.
+   */
+  public Contour[] getContours(float[] c) {
+    if (_algorithm==Algorithm.FLYING_EDGES && c.length==1) {
+      updateSampling();
+      updateGradients();
+      FlyingEdges fe = new FlyingEdges(_s1,_s2,_s3,_normals,_swap13,
+                                       _concurrency==Concurrency.PARALLEL,
+                                       _grad);
+      return new Contour[]{fe.getContour(_f,c[0])};
+    }
+    updateSampling();
+    updateGradients();
+    if (_index && _bmin==null)
+      makeBlockIndex(_f);
+    int ns = max(0,n3-1);
+    initLists(c.length,ns);
+    if (_concurrency==Concurrency.PARALLEL) marchParallel(_f,c,0,ns-1);
+    else if (_concurrency==Concurrency.SERIAL) marchSerial(_f,c,0,ns-1);
+    _clast = (c.length>0)?c[0]:Float.NaN;
+    _nlast = _normals;
+    return makeContours(c.length);
+  }
 
-    f1 = _s1.getFirst();
-    f2 = _s2.getFirst();
-    f3 = _s3.getFirst();
-    
-    if (_concurrency==Concurrency.PARALLEL) marchParallel(_f,c);
-    else if (_concurrency==Concurrency.SERIAL) marchSerial(_f,c);
-
-    // Idea: to skip this, add up (nx=xlen) or (nt=tlen) in march()
-    int xlen = 0,tlen = 0, stlen = 0;
-    for (int i=0; i<n3; ++i) {
-      if (_xlist[i]!=null) xlen+=_xlist[i].n;
-      if (_tlist[i]!=null) tlen+=_tlist[i].n;
-      if (_stlist[i]!=null) stlen+=_stlist[i].n;
-    }
-
-    Contour contour = new Contour();
-    contour.x = new float[xlen];
-    contour.u = _normals?new float[xlen]:null;
-    contour.i = new int[tlen];
-    int[] slist = new int[stlen];
-    int xn = 0,tn = 0,stn = 0;
-    for (int i=0; i<n3; ++i) {
-      if (_xlist[i]!=null) {
-        System.arraycopy(_xlist[i].trim(),0,contour.x,xn,_xlist[i].n);
-        if (_normals)
-          System.arraycopy(_ulist[i].trim(),0,contour.u,xn,_ulist[i].n);
-        xn+=_xlist[i].n;
+  /**
+   * Updates a 3D contour after values of this image have changed.
+   * Only values of samples inside the specified box may have changed
+   * since the most recent contour was extracted by this marching cubes.
+   * If that contour was for the same isovalue, then only slabs of cubes
+   * with vertices that depend on changed values are marched again; the
+   * triangles of all other slabs are reused and spliced together with the
+   * new ones. Otherwise, this method is equivalent to {@link
+   * #getContour(float)}. The box may extend beyond the image bounds.
+   * @param c the isovalue to extract.
+   * @param k1 the lower bound of changed samples in the 1st dimension.
+   * @param k2 the lower bound of changed samples in the 2nd dimension.
+   * @param k3 the lower bound of changed samples in the 3rd dimension.
+   * @param j1 the upper bound of changed samples in the 1st dimension.
+   * @param j2 the upper bound of changed samples in the 2nd dimension.
+   * @param j3 the upper bound of changed samples in the 3rd dimension.
+   * @return the updated 3D contour.
+   */
+  public Contour updateContour(
+    float c, int k1, int k2, int k3, int j1, int j2, int j3)
+  {
+    if (_algorithm==Algorithm.FLYING_EDGES || _clast!=c ||
+        _nlast!=_normals) {
+      setImage(_f);
+      return getContour(c);
+    }
+    updateSampling();
+    k1 = max(0,k1); j1 = min(n1-1,j1);
+    k2 = max(0,k2); j2 = min(n2-1,j2);
+    k3 = max(0,k3); j3 = min(n3-1,j3);
+    if (k1>j1 || k2>j2 || k3>j3)
+      return makeContours(1)[0];
+    if (_bmin!=null) {
+      updateBlockIndex(_f,k1,k2,k3,j1,j2,j3);
+    } else if (_index) {
+      makeBlockIndex(_f);
+    }
+    if (_grad!=null)
+      _grad.update(_f,k1,k2,k3,j1,j2,j3);
+    updateGradients();
+
+    // Cubes in slabs k3-1 to j3 contain changed samples, and normal vectors
+    // computed for vertices in slabs k3-2 and j3+1 depend on them as well.
+    int ns = n3-1;
+    float[] cs = {c};
+    int i3a = max(0,k3-2), i3b = min(ns-1,j3+1);
+    if (_concurrency==Concurrency.PARALLEL) marchParallel(_f,cs,i3a,i3b);
+    else if (_concurrency==Concurrency.SERIAL) marchSerial(_f,cs,i3a,i3b);
+    return makeContours(1)[0];
+  }
+
+  /**
+   * Gets a 3D contour from this image, passing it to a sink.
+   * Triangles and vertices are passed to the sink one slab at a time, in
+   * order, without copying them into a contour. Together with scratch
+   * buffers that are retained between calls, and a sink such as a
+   * {@link ContourBuffer} that is reused, this enables repeated extraction
+   * of contours with almost no memory allocation.
+   * @param c the isovalue to extract.
+   * @param sink the sink for vertices and triangles.
+   */
+  public void getContour(float c, ContourSink sink) {
+    if (_algorithm==Algorithm.FLYING_EDGES) {
+      Contour contour = getContour(c);
+      sink.addVertices(contour.x.length/3,contour.x,contour.u);
+      sink.addTriangles(contour.i.length/3,contour.i);
+      return;
+    }
+    updateSampling();
+    updateGradients();
+    if (_index && _bmin==null)
+      makeBlockIndex(_f);
+    int ns = max(0,n3-1);
+    float[] cs = {c};
+    initLists(1,ns);
+    if (_concurrency==Concurrency.PARALLEL) marchParallel(_f,cs,0,ns-1);
+    else if (_concurrency==Concurrency.SERIAL) marchSerial(_f,cs,0,ns-1);
+    _clast = Float.NaN; // lists are modified below
+    int ox = 0;
+    for (int i3=0; i3<n3-1; ++i3) {
+      FloatList xlist = _xlist[0][i3];
+      FloatList ulist = _ulist[0][i3];
+      IntList tlist = _tlist[0][i3];
+      int nx = xlist.n/3;
+      if (_swap13) {
+        swap13(xlist.a,nx);
+        if (_normals) swap13(ulist.a,nx);
       }
-      if (_tlist[i]!=null) {
-        System.arraycopy(_tlist[i].trim(),0,contour.i,tn,_tlist[i].n);
-        tn+=_tlist[i].n;
+      int[] t = tlist.a;
+      for (int it=0; it<tlist.n; ++it)
+        t[it] = (t[it]>=0)?ox+t[it]:ox+nx-1-t[it];
+      sink.addVertices(nx,xlist.a,_normals?ulist.a:null);
+      sink.addTriangles(tlist.n/3,t);
+      ox += nx;
+    }
+  }
+
+  /**
+   * Streams a 3D contour from an image that need not fit in memory.
+   * Planes of image values are read in order from the specified source,
+   * and the contour is passed to the specified sink one slab at a time,
+   * so that memory required is proportional to the size of a plane, not
+   * the size of the image. The image set for this marching cubes (if any)
+   * and the block index are not used. Samplings of the image are those
+   * set for this marching cubes.
+   * @param c the isovalue to extract.
+   * @param source the source of planes of image values.
+   * @param sink the sink for vertices and triangles.
+   */
+  public void streamContour(float c, PlaneSource source, ContourSink sink) {
+    updateSampling();
+    if (n3<2) return;
+
+    // Ring of planes. Normal vectors for vertices in slab i3 require image
+    // values in planes i3-1, i3, i3+1 and i3+2; other planes are null.
+    float[][][] f = new float[n3][][];
+    float[][][] ring = new float[4][n2][n1];
+    EdgeCache cache = new EdgeCache();
+    cache.bm = null;
+    FloatList xlist = new FloatList();
+    FloatList ulist = new FloatList();
+    IntList tlist = new IntList();
+    int ox = 0;
+    for (int i3=0; i3<n3-1; ++i3) {
+      for (int j3=max(0,i3-1); j3<=min(n3-1,i3+2); ++j3) {
+        if (f[j3]==null) {
+          f[j3] = ring[j3%4];
+          source.readPlane(j3,f[j3]);
+        }
       }
-      if (_stlist[i]!=null) {
-        int sn = _stlist[i].n;
-        System.arraycopy(_stlist[i].trim(),0,slist,stn,sn);
-        stn+=sn;
+      if (i3>1) f[i3-2] = null;
+      xlist.n = 0;
+      ulist.n = 0;
+      tlist.n = 0;
+      march(i3,f,c,cache,xlist,tlist,ulist);
+
+      // Vertices in this slab are numbered from ox; vertices in the bottom
+      // plane of the next slab are numbered first in that slab.
+      int nx = xlist.n/3;
+      int nt = tlist.n/3;
+      if (_swap13) {
+        swap13(xlist.a,nx);
+        if (_normals) swap13(ulist.a,nx);
       }
+      int[] t = tlist.a;
+      for (int it=0; it<tlist.n; ++it)
+        t[it] = (t[it]>=0)?ox+t[it]:ox+nx-1-t[it];
+      sink.addVertices(nx,xlist.a,_normals?ulist.a:null);
+      sink.addTriangles(nt,t);
+      ox += nx;
     }
+  }
 
-    // Renumber triangle list.
-    HashMap<Integer,Integer> hm = new HashMap<Integer,Integer>();
-    int key,value = 0;
-    for (int i=0; i<stn; ++i) {
-      key = slist[i];
-      if (!hm.containsKey(key)) hm.put(key,value++);
-    }
+  /**
+   * Gets connected components of a 3D contour from this image.
+   * The image is marched once, and components are labeled with a
+   * union-find of vertices shared by triangles, for all slabs in parallel.
+   * Numbers of triangles, areas and bounds are computed for all components
+   * before their contours are made, and contours are made only for those
+   * components with at least the specified number of triangles. The
+   * marching cubes algorithm is used, regardless of the algorithm set.
+   * @param c the isovalue to extract.
+   * @param minTriangles the minimum number of triangles in a component.
+   * @return array of components, in order of decreasing numbers of
+   *  triangles.
+   */
+  public Component[] getComponents(float c, int minTriangles) {
+    updateSampling();
+    updateGradients();
+    if (_index && _bmin==null)
+      makeBlockIndex(_f);
+    int ns = max(0,n3-1);
+    float[] cs = {c};
+    initLists(1,ns);
+    if (_concurrency==Concurrency.PARALLEL) marchParallel(_f,cs,0,ns-1);
+    else if (_concurrency==Concurrency.SERIAL) marchSerial(_f,cs,0,ns-1);
+    _clast = c;
+    _nlast = _normals;
 
-    for (int i=0; i<tlen; ++i) {
-      key = contour.i[i];
-      contour.i[i] = hm.get(key);
-    }
+    // Vertex offsets for all slabs, and labels of components for all
+    // vertices, numbered in order of their first vertex.
+    int[] ox = new int[ns+1];
+    for (int i3=0; i3<ns; ++i3)
+      ox[i3+1] = ox[i3]+_xlist[0][i3].n/3;
+    int nx = ox[ns];
+    int[] label = labelComponents(ox);
+    int nc = 0;
+    for (int ix=0; ix<nx; ++ix)
+      nc = max(nc,label[ix]+1);
 
-    if (_swap13) {
-      float[] x = contour.x;
-      float[] u = contour.u;
-      for (int i=x.length-3; i>=0; i-=3) {
-        float x1 = x[i  ];
-        float x3 = x[i+2];
-        x[i  ] = x3;
-        x[i+2] = x1;
-        if (u!=null) {
-          float u1 = u[i  ];
-          float u3 = u[i+2];
-          u[i  ] = u3;
-          u[i+2] = u1;
+    // Numbers of triangles, areas and bounds for all components.
+    final int[] nt = new int[nc];
+    double[] area = new double[nc];
+    float[] bmin = new float[3*nc];
+    float[] bmax = new float[3*nc];
+    Arrays.fill(bmin,Float.MAX_VALUE);
+    Arrays.fill(bmax,-Float.MAX_VALUE);
+    for (int i3=0; i3<ns; ++i3) {
+      float[] x = _xlist[0][i3].a;
+      for (int ix=0,jx=ox[i3]; jx<ox[i3+1]; ++ix,++jx) {
+        int ic = label[jx];
+        for (int k=0; k<3; ++k) {
+          float xk = x[3*ix+k];
+          if (xk<bmin[3*ic+k]) bmin[3*ic+k] = xk;
+          if (xk>bmax[3*ic+k]) bmax[3*ic+k] = xk;
         }
       }
+      int[] t = _tlist[0][i3].a;
+      int n = _tlist[0][i3].n;
+      for (int it=0; it<n; it+=3) {
+        int ic = label[globalIndex(t[it],i3,ox)];
+        nt[ic] += 1;
+        area[ic] += triangleArea(i3,t[it],t[it+1],t[it+2]);
+      }
     }
-    return contour;
+
+    // Components with enough triangles, largest first.
+    Integer[] kept = new Integer[nc];
+    int nk = 0;
+    for (int ic=0; ic<nc; ++ic) {
+      if (nt[ic]>=minTriangles)
+        kept[nk++] = ic;
+    }
+    kept = Arrays.copyOf(kept,nk);
+    Arrays.sort(kept,new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return (nt[a]!=nt[b])?nt[b]-nt[a]:a-b;
+      }
+    });
+    int[] index = new int[nc];
+    Arrays.fill(index,-1);
+    Component[] components = new Component[nk];
+    for (int ik=0; ik<nk; ++ik) {
+      int ic = kept[ik];
+      index[ic] = ik;
+      Component component = components[ik] = new Component();
+      component.nt = nt[ic];
+      component.area = area[ic];
+      component.bounds = new float[]{
+        bmin[3*ic],bmin[3*ic+1],bmin[3*ic+2],
+        bmax[3*ic],bmax[3*ic+1],bmax[3*ic+2]};
+      if (_swap13) {
+        swap13(component.bounds,2);
+      }
+    }
+    makeComponents(ox,label,index,components);
+    return components;
   }
   
   ///////////////////////////////////////////////////////////////////////////
   // private
 
+  private void updateSampling() {
+    n1 = _s1.getCount();
+    n2 = _s2.getCount();
+    n3 = _s3.getCount();
+
+    d1 = _s1.getDelta();
+    d2 = _s2.getDelta();
+    d3 = _s3.getDelta();
+
+    f1 = _s1.getFirst();
+    f2 = _s2.getFirst();
+    f3 = _s3.getFirst();
+  }
+
+  private void updateGradients() {
+    if (_gcache && _normals && n1>0 && n2>0 && n3>0 &&
+        (_grad==null || !_grad.fits(n1,n2,n3)))
+      _grad = new Gradients(_f);
+  }
+
+  private static void swap13(float[] x, int nx) {
+    for (int i=0; i<3*nx; i+=3) {
+      float x1 = x[i  ];
+      x[i  ] = x[i+2];
+      x[i+2] = x1;
+    }
+  }
+
   private class IntList {
     public int n;      // the number of submitted values.
     public int[] a = new int[32]; // the array of ints.
@@ -214,94 +708,463 @@ public class MarchingCubes {
     }
   }
 
-  private FloatList[] _xlist;
-  private FloatList[] _ulist;
-  private IntList[] _tlist;
-  private IntList[] _stlist;
+  /* Indices of vertices on the edges of one slab of cubes. Edges in the
+   * bottom plane (ix0,ix1) and edges between the two planes (ix2) are
+   * owned by the slab. Edges in the top plane (jx0,jx1) are owned by the
+   * next slab, which numbers them first, in the same order; so here they
+   * are stored as -1-k, where k is the vertex index in that next slab.
+   * Only indices for edges intersected by the contour are valid. One cache
+   * is used by each thread, so scratch memory is O(n1*n2) per thread.
+   */
+  private class EdgeCache {
+    int[][] ix0 = new int[n2][n1];
+    int[][] ix1 = new int[n2][n1];
+    int[][] ix2 = new int[n2][n1];
+    int[][] jx0 = new int[n2][n1];
+    int[][] jx1 = new int[n2][n1];
+    float[] u = new float[3];
+    Gradients g; // gradients, if cached
+    boolean[][] bm = (_bmin!=null)?new boolean[_bmin[0].length][nb1]:null;
+    int[] ja = new int[max(1,nb1)];
+    int[] jb = new int[max(1,nb1)];
+    boolean fits() {
+      if (ix0.length!=n2 || n2>0 && ix0[0].length!=n1) return false;
+      if (_bmin==null) return bm==null;
+      return bm!=null && bm.length==_bmin[0].length && ja.length==nb1;
+    }
+  }
+
+  /* Number of cubes per block in each dimension of the block index. */
+  private static final int BLOCK = 8;
+
+  private FloatList[][] _xlist; // vertices for all isovalues and slabs
+  private FloatList[][] _ulist; // normals for all isovalues and slabs
+  private IntList[][] _tlist; // triangles for all isovalues and slabs
+  private Parallel.Unsafe<EdgeCache> _caches = // retained edge caches
+    new Parallel.Unsafe<EdgeCache>();
   private Sampling _s1,_s2,_s3;
   private float[][][] _f;
-  private int[][][] _ix0;
-  private int[][][] _ix1;
-  private int[][][] _ix2;
   private int n1,n2,n3;
   private double d1,d2,d3;
   private double f1,f2,f3;
+  private int nb1; // number of blocks in 1st dimension
+  private float[][][] _bmin,_bmax; // min/max image values for all blocks
+  private boolean _gcache = false;
+  private Gradients _grad; // cached gradients, if any
+  private float _clast = Float.NaN; // isovalue of lists for all slabs
+  private boolean _nlast; // true, if lists for all slabs have normals
+  private boolean _index = false;
   private boolean _normals = true;
   private boolean _swap13 = true;
   private Concurrency _concurrency = Concurrency.PARALLEL;
+  private Algorithm _algorithm = Algorithm.MARCHING_CUBES;
 
   /**
    * Marches the cubes with serial concurrency.
    * @param f the 3D image.
-   * @param c the contour to extract.
-   */
-  private void marchSerial(float[][][] f, float c) {
-    _tlist = new IntList[n3];
-    _stlist = new IntList[n3];
-    _xlist = new FloatList[n3];
-    _ulist = new FloatList[n3];
-    _ix0 = new int[n3][n2][n1];
-    _ix1 = new int[n3][n2][n1];
-    _ix2 = new int[n3][n2][n1];
-    for (int i3=0; i3<n3; ++i3) {
-      for (int i2=0; i2<n2; ++i2) {
-        for (int i1=0; i1<n1; ++i1) {
-          _ix0[i3][i2][i1] = -1;
-          _ix1[i3][i2][i1] = -1;
-          _ix2[i3][i2][i1] = -1;
+   * @param c array of contours to extract.
+   * @param i3a index of the first slab to march.
+   * @param i3b index of the last slab to march.
+   */
+  private void marchSerial(float[][][] f, float[] c, int i3a, int i3b) {
+    EdgeCache cache = getCache();
+    for (int i3=i3a; i3<=i3b; ++i3)
+      marchSlab(i3,f,c,cache);
+  }
+
+  /**
+   * Marches the cubes with parallel concurrency.
+   * Because each slab owns the vertices it computes, slabs are independent
+   * and are marched by fork-join tasks with no barrier between them.
+   * @param f the 3D image.
+   * @param c array of contours to extract.
+   * @param i3a index of the first slab to march.
+   * @param i3b index of the last slab to march.
+   */
+  private void marchParallel(float[][][] f, float[] c, int i3a, int i3b) {
+    if (i3a>i3b) return;
+    long[] w = slabCosts(c,i3a,i3b);
+    _pool.invoke(new SlabTask(f,c,w,i3a,i3b));
+  }
+
+  /*
+   * Marches a range of slabs. A range is split in two while few tasks are
+   * queued for idle threads to steal, so that slabs are marched serially
+   * once all threads are busy. The range is split where the estimated cost
+   * of marching is halved, not at its middle slab, so that the halves of
+   * a contour with uneven density take about the same time.
+   */
+  private class SlabTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    float[][][] f;
+    float[] c;
+    long[] w;
+    int i3a,i3b;
+    SlabTask(float[][][] f, float[] c, long[] w, int i3a, int i3b) {
+      this.f = f;
+      this.c = c;
+      this.w = w;
+      this.i3a = i3a;
+      this.i3b = i3b;
+    }
+    protected void compute() {
+      if (i3a<i3b && getSurplusQueuedTaskCount()<=SURPLUS) {
+        int m = splitSlab(w,i3a,i3b);
+        invokeAll(new SlabTask(f,c,w,i3a,m-1),new SlabTask(f,c,w,m,i3b));
+      } else {
+        EdgeCache cache = getCache();
+        for (int i3=i3a; i3<=i3b; ++i3)
+          marchSlab(i3,f,c,cache);
+      }
+    }
+  }
+
+  /* Pool of threads that march slabs. */
+  private static final ForkJoinPool _pool = new ForkJoinPool();
+
+  /* Number of queued tasks above which ranges of slabs are not split. */
+  private static final int SURPLUS = 3;
+
+  /* Estimated cost of a triangle, relative to that of an empty cube. */
+  private static final int TRIANGLE_COST = 8;
+
+  /*
+   * Estimates costs of marching slabs, as sums of costs for all slabs
+   * before each slab, so that w[i3+1]-w[i3] is the cost for slab i3.
+   * Cubes in blocks that do not span an isovalue are not counted, and the
+   * number of triangles in each slab is that of the previous contour.
+   */
+  private long[] slabCosts(float[] c, int i3a, int i3b) {
+    int nc = c.length;
+    long[] w = new long[i3b+2];
+    long cubes = (long)(n1-1)*(n2-1);
+    for (int i3=i3a; i3<=i3b; ++i3) {
+      long wi = 0;
+      for (int ic=0; ic<nc; ++ic) {
+        if (_bmin!=null) {
+          float[][] bmin = _bmin[i3/BLOCK];
+          float[][] bmax = _bmax[i3/BLOCK];
+          for (int b2=0; b2<bmin.length; ++b2) {
+            for (int b1=0; b1<nb1; ++b1) {
+              if (bmin[b2][b1]<=c[ic] && bmax[b2][b1]>c[ic])
+                wi += BLOCK*BLOCK;
+            }
+          }
+        } else {
+          wi += cubes;
         }
+        wi += TRIANGLE_COST*(_tlist[ic][i3].n/3);
       }
+      w[i3+1] = w[i3]+1+wi;
+    }
+    return w;
+  }
+
+  /*
+   * Returns the first slab in the upper half of a range of slabs, the
+   * slab m for which w[m] is nearest to the middle of w[i3a] and w[i3b+1].
+   */
+  private static int splitSlab(long[] w, int i3a, int i3b) {
+    long wm = w[i3a]+(w[i3b+1]-w[i3a])/2;
+    int ma = i3a+1, mb = i3b;
+    while (ma<mb) {
+      int m = (ma+mb)/2;
+      if (w[m]<wm) ma = m+1;
+      else mb = m;
     }
+    if (ma>i3a+1 && wm-w[ma-1]<w[ma]-wm)
+      --ma;
+    return ma;
+  }
+
+  /*
+   * Gets the edge cache for the current thread. Caches are retained
+   * between contours, and replaced only if image dimensions or the block
+   * index have changed.
+   */
+  private EdgeCache getCache() {
+    EdgeCache cache = _caches.get();
+    if (cache==null || !cache.fits())
+      _caches.set(cache=new EdgeCache());
+    cache.g = _grad;
+    return cache;
+  }
 
-    int i3step = 2;
-    int i3start = 0;
-    int i3stop = n3-1;
-    for (int i3pass=0; i3pass<i3step; ++i3pass,++i3start) {
-      for (int i3=i3start; i3<i3stop; i3+=i3step) {
-        _xlist[i3] = new FloatList();
-        _ulist[i3] = new FloatList();
-        _tlist[i3] = new IntList();
-        _stlist[i3] = new IntList();
-        march(i3,f,c,_xlist[i3],_tlist[i3],_ulist[i3],_stlist[i3]);
+  /*
+   * Allocates lists of vertices, normals and triangles, if necessary.
+   * Lists are retained between contours, and emptied before each slab is
+   * marched, so that their arrays are grown only when a slab contains
+   * more of the contour than it did before.
+   */
+  private void initLists(int nc, int ns) {
+    nc = max(1,nc);
+    if (_tlist!=null && _tlist.length>=nc && _tlist[0].length==ns)
+      return;
+    _tlist = new IntList[nc][ns];
+    _xlist = new FloatList[nc][ns];
+    _ulist = new FloatList[nc][ns];
+    for (int ic=0; ic<nc; ++ic) {
+      for (int i3=0; i3<ns; ++i3) {
+        _tlist[ic][i3] = new IntList();
+        _xlist[ic][i3] = new FloatList();
+        _ulist[ic][i3] = new FloatList();
       }
     }
   }
 
+  /*
+   * Marches one slab for all isovalues. The two planes of image values
+   * for this slab are read from memory once and remain in cache while
+   * the slab is marched for each isovalue, and the edge cache is reused.
+   */
+  private void marchSlab(int i3, float[][][] f, float[] c, EdgeCache cache) {
+    for (int ic=0; ic<c.length; ++ic) {
+      _tlist[ic][i3].n = 0;
+      _xlist[ic][i3].n = 0;
+      _ulist[ic][i3].n = 0;
+      march(i3,f,c[ic],cache,_xlist[ic][i3],_tlist[ic][i3],_ulist[ic][i3]);
+    }
+  }
+
+  /*
+   * Makes contours from the vertices and triangles for all slabs.
+   */
+  private Contour[] makeContours(int nc) {
+
+    // Vertex offsets for all slabs, the prefix sum of the slab vertex
+    // counts. Vertex indices stored in the triangle lists are local to each
+    // slab, or, if negative, refer to a vertex in the bottom plane of the
+    // next slab.
+    int ns = max(0,n3-1);
+    int[][] ox = new int[nc][ns+1];
+    int[][] ot = new int[nc][ns+1];
+    Contour[] contours = new Contour[nc];
+    for (int ic=0; ic<nc; ++ic) {
+      for (int i=0; i<ns; ++i) {
+        ox[ic][i+1] = ox[ic][i]+_xlist[ic][i].n/3;
+        ot[ic][i+1] = ot[ic][i]+_tlist[ic][i].n;
+      }
+      contours[ic] = new Contour();
+      contours[ic].x = new float[3*ox[ic][ns]];
+      contours[ic].u = _normals?new float[3*ox[ic][ns]]:null;
+      contours[ic].i = new int[ot[ic][ns]];
+    }
+    mergeSlabs(ox,ot,contours);
+    return contours;
+  }
 
-  private void marchParallel(float[][][] f, float c) {
-    _ix0 = new int[n3][n2][n1];
-    _ix1 = new int[n3][n2][n1];
-    _ix2 = new int[n3][n2][n1];
-    for (int i3=0; i3<n3; ++i3) {
-      for (int i2=0; i2<n2; ++i2) {
-        for (int i1=0; i1<n1; ++i1) {
-          _ix0[i3][i2][i1] = -1;
-          _ix1[i3][i2][i1] = -1;
-          _ix2[i3][i2][i1] = -1;
+  /**
+   * Copies the vertices, normals and triangles of all slabs into contours.
+   * Slabs are independent once their offsets are known, so they are copied
+   * in parallel, and triangle indices are made global during the copy.
+   * @param ox arrays of vertex offsets for all isovalues and slabs.
+   * @param ot arrays of triangle index offsets for all isovalues and slabs.
+   * @param contours the contours with arrays allocated.
+   */
+  private void mergeSlabs(int[][] ox, int[][] ot, Contour[] contours) {
+    final int[][] fox = ox;
+    final int[][] fot = ot;
+    final Contour[] fcontours = contours;
+    final int ns = max(0,n3-1);
+    int nc = contours.length;
+    if (_concurrency==Concurrency.PARALLEL && nc*ns>0) {
+      Parallel.loop(nc*ns,new Parallel.LoopInt() {
+        public void compute(int is) {
+          int ic = is/ns;
+          int i3 = is%ns;
+          mergeSlab(ic,i3,fox[ic],fot[ic],fcontours[ic]);
+        }
+      });
+    } else {
+      for (int ic=0; ic<nc; ++ic)
+        for (int i3=0; i3<ns; ++i3)
+          mergeSlab(ic,i3,ox[ic],ot[ic],contours[ic]);
+    }
+  }
+
+  /*
+   * Copies one slab into the contour, swapping coordinates if necessary.
+   */
+  private void mergeSlab(
+    int ic, int i3, int[] ox, int[] ot, Contour contour)
+  {
+    float[] x = contour.x;
+    float[] u = contour.u;
+    int[] t = contour.i;
+    int xn = 3*ox[i3];
+    int nx = _xlist[ic][i3].n;
+    System.arraycopy(_xlist[ic][i3].a,0,x,xn,nx);
+    if (u!=null)
+      System.arraycopy(_ulist[ic][i3].a,0,u,xn,nx);
+    if (_swap13) {
+      for (int i=xn; i<xn+nx; i+=3) {
+        float x1 = x[i  ];
+        x[i  ] = x[i+2];
+        x[i+2] = x1;
+        if (u!=null) {
+          float u1 = u[i  ];
+          u[i  ] = u[i+2];
+          u[i+2] = u1;
         }
       }
     }
+    int[] ts = _tlist[ic][i3].a;
+    int nt = _tlist[ic][i3].n;
+    int jx = ox[i3];
+    int kx = ox[i3+1]-1;
+    for (int it=0,jt=ot[i3]; it<nt; ++it,++jt) {
+      int ix = ts[it];
+      t[jt] = (ix>=0)?jx+ix:kx-ix;
+    }
+  }
 
-    final int i3step = 2;
-    int i3start = 0;
-    final int i3stop = n3-1;
+  /*
+   * Gets the global index of a vertex referenced by a triangle in slab i3.
+   */
+  private static int globalIndex(int ix, int i3, int[] ox) {
+    return (ix>=0)?ox[i3]+ix:ox[i3+1]-1-ix;
+  }
 
-    _tlist = new IntList[n3];
-    _stlist = new IntList[n3];
-    _xlist = new FloatList[n3];
-    _ulist = new FloatList[n3];
-    final float fc = c;
-    final float[][][] ff = f;
-    for (int i3pass=0; i3pass<i3step; ++i3pass,++i3start) {
-      Parallel.loop(i3start,i3stop,i3step,new Parallel.LoopInt() {
-        public void compute(int i3) {
-          _tlist[i3] = new IntList();
-          _stlist[i3] = new IntList();
-          _xlist[i3] = new FloatList();
-          _ulist[i3] = new FloatList();
-          march(i3,ff,fc,_xlist[i3],_tlist[i3],_ulist[i3],_stlist[i3]);
+  /*
+   * Labels connected components for all vertices. Vertices of triangles
+   * are joined with a lock-free union-find, in which the root of each set
+   * is its vertex with the lowest index, so that slabs may be joined in
+   * parallel. Components are numbered in order of their roots.
+   */
+  private int[] labelComponents(int[] ox) {
+    final int[] fox = ox;
+    final int ns = ox.length-1;
+    int nx = ox[ns];
+    final AtomicIntegerArray parent = new AtomicIntegerArray(rampint(0,1,nx));
+    Parallel.LoopInt body = new Parallel.LoopInt() {
+      public void compute(int i3) {
+        int[] t = _tlist[0][i3].a;
+        int n = _tlist[0][i3].n;
+        for (int it=0; it<n; it+=3) {
+          int ia = globalIndex(t[it  ],i3,fox);
+          int ib = globalIndex(t[it+1],i3,fox);
+          int ic = globalIndex(t[it+2],i3,fox);
+          union(parent,ia,ib);
+          union(parent,ia,ic);
         }
-      });
+      }
+    };
+    if (_concurrency==Concurrency.PARALLEL && ns>0) {
+      Parallel.loop(ns,body);
+    } else {
+      for (int i3=0; i3<ns; ++i3)
+        body.compute(i3);
+    }
+    int[] label = new int[nx];
+    int nc = 0;
+    for (int ix=0; ix<nx; ++ix) {
+      int ir = find(parent,ix);
+      label[ix] = (ir==ix)?nc++:label[ir];
+    }
+    return label;
+  }
+
+  /*
+   * Finds the root of the set containing i, halving the path to it.
+   */
+  private static int find(AtomicIntegerArray parent, int i) {
+    for (;;) {
+      int p = parent.get(i);
+      if (p==i) return i;
+      int q = parent.get(p);
+      if (q!=p) parent.compareAndSet(i,p,q);
+      i = p;
+    }
+  }
+
+  /*
+   * Joins the sets containing i and j, making the root with the higher
+   * index a child of the root with the lower index.
+   */
+  private static void union(AtomicIntegerArray parent, int i, int j) {
+    for (;;) {
+      i = find(parent,i);
+      j = find(parent,j);
+      if (i==j) return;
+      if (i<j) {
+        int t = i;
+        i = j;
+        j = t;
+      }
+      if (parent.compareAndSet(i,i,j)) return;
+    }
+  }
+
+  /*
+   * Computes the area of a triangle in slab i3 with vertices ia, ib and
+   * ic, indexed as in the triangle list for that slab.
+   */
+  private double triangleArea(int i3, int ia, int ib, int ic) {
+    float[] x0 = _xlist[0][i3].a;
+    float[] x1 = (i3<n3-2)?_xlist[0][i3+1].a:null;
+    float[] xa = (ia>=0)?x0:x1;
+    float[] xb = (ib>=0)?x0:x1;
+    float[] xc = (ic>=0)?x0:x1;
+    int ja = 3*((ia>=0)?ia:-1-ia);
+    int jb = 3*((ib>=0)?ib:-1-ib);
+    int jc = 3*((ic>=0)?ic:-1-ic);
+    double a1 = xb[jb  ]-xa[ja  ], b1 = xc[jc  ]-xa[ja  ];
+    double a2 = xb[jb+1]-xa[ja+1], b2 = xc[jc+1]-xa[ja+1];
+    double a3 = xb[jb+2]-xa[ja+2], b3 = xc[jc+2]-xa[ja+2];
+    double c1 = a2*b3-a3*b2;
+    double c2 = a3*b1-a1*b3;
+    double c3 = a1*b2-a2*b1;
+    return 0.5*sqrt(c1*c1+c2*c2+c3*c3);
+  }
+
+  /*
+   * Makes contours for components. Vertices of each component are
+   * numbered in order of their global indices.
+   */
+  private void makeComponents(
+    int[] ox, int[] label, int[] index, Component[] components)
+  {
+    int ns = ox.length-1;
+    int nk = components.length;
+    int[] local = new int[ox[ns]];
+    int[] nv = new int[nk];
+    for (int ix=0; ix<local.length; ++ix) {
+      int ik = index[label[ix]];
+      if (ik>=0) local[ix] = nv[ik]++;
+    }
+    for (int ik=0; ik<nk; ++ik) {
+      Contour contour = components[ik].contour = new Contour();
+      contour.x = new float[3*nv[ik]];
+      contour.u = _normals?new float[3*nv[ik]]:null;
+      contour.i = new int[3*components[ik].nt];
+    }
+    int[] mt = new int[nk];
+    for (int i3=0; i3<ns; ++i3) {
+      float[] x = _xlist[0][i3].a;
+      float[] u = _ulist[0][i3].a;
+      for (int ix=0,jx=ox[i3]; jx<ox[i3+1]; ++ix,++jx) {
+        int ik = index[label[jx]];
+        if (ik<0) continue;
+        Contour contour = components[ik].contour;
+        int i = 3*ix, j = 3*local[jx];
+        int k1 = _swap13?2:0, k3 = 2-k1;
+        contour.x[j  ] = x[i+k1];
+        contour.x[j+1] = x[i+1];
+        contour.x[j+2] = x[i+k3];
+        if (contour.u!=null) {
+          contour.u[j  ] = u[i+k1];
+          contour.u[j+1] = u[i+1];
+          contour.u[j+2] = u[i+k3];
+        }
+      }
+      int[] t = _tlist[0][i3].a;
+      int n = _tlist[0][i3].n;
+      for (int it=0; it<n; ++it) {
+        int jx = globalIndex(t[it],i3,ox);
+        int ik = index[label[jx]];
+        if (ik>=0)
+          components[ik].contour.i[mt[ik]++] = local[jx];
+      }
     }
   }
 
@@ -309,16 +1172,39 @@ public class MarchingCubes {
    * Marches a slab of the 3D image.
    */
   private void march(
-    int i3, float[][][] f, float c,
-    FloatList xlist, IntList tlist, FloatList ulist, IntList stlist)
+    int i3, float[][][] f, float c, EdgeCache cache,
+    FloatList xlist, IntList tlist, FloatList ulist)
   {
-    float[] u = new float[3];
+    int[][] ix0 = cache.ix0, ix1 = cache.ix1, ix2 = cache.ix2;
+    int[][] jx0 = cache.jx0, jx1 = cache.jx1;
+    float[] u = cache.u;
+    int[] ja = cache.ja, jb = cache.jb;
 
-    int nx3 = n1*n2*i3;
+    // Blocks of cubes in this slab with values that span the isovalue. If
+    // there are none, then no edges in this slab are intersected.
+    boolean[][] bm = null;
+    if (cache.bm!=null) {
+      bm = cache.bm;
+      if (!markBlocks(i3/BLOCK,c,bm)) return;
+    }
+
+    // Compute vertices for all intersected edges owned by this slab, and
+    // number (but do not compute) those in the top plane of this slab.
+    // The top plane of the last slab is owned by that slab.
+    int nx = 0;
+    nx = indexPlane(i3,f,c,bm,cache,ix0,ix1,nx,xlist,ulist);
+    nx = indexAxis3(i3,f,c,bm,cache,ix2,nx,xlist,ulist);
+    if (i3==n3-2) {
+      indexPlane(i3+1,f,c,bm,cache,jx0,jx1,nx,xlist,ulist);
+    } else {
+      indexPlane(i3+1,f,c,bm,cache,jx0,jx1,0,null,null);
+    }
 
     // For all cubes in this slab, ...
     for (int i2=0; i2<n2-1; ++i2) {
-      for (int i1=0; i1<n1-1; ++i1) {
+      int ns = spans(bm,i2,i2,ja,jb);
+      for (int is=0; is<ns; ++is)
+      for (int i1=ja[is]; i1<jb[is]; ++i1) {
 
         // Eight corner values for this cube.
         float c0 = f[i3  ][i2  ][i1  ];
@@ -348,180 +1234,308 @@ public class MarchingCubes {
           int[] edges = _edges[ci];
           int ne = edges.length;
 
-          // For all triangles (triplets of edge intersections), ...
-          for (int ie=0; ie<ne; ie+=3) {
-
-            // For each of three triangle vertices, ...
-            for (int je=0; je<3; ++je) {
-
-              // Decode edge j->k into sample indices of j and axis to k.
-              int edge = edges[ie+je];
-              float cj,ck;
-              int j1,j2,j3,kk;
-              switch(edge) {
-              case 0: // 0->1
-                cj = c0;
-                ck = c1;
-                j1 = i1;
-                j2 = i2;
-                j3 = i3;
-                kk = 0;
-                break;
-              case 1: // 1->2
-                cj = c1;
-                ck = c2;
-                j1 = i1+1;
-                j2 = i2;
-                j3 = i3;
-                kk = 1;
-                break;
-              case 2: // 3->2
-                cj = c3;
-                ck = c2;
-                j1 = i1;
-                j2 = i2+1;
-                j3 = i3;
-                kk = 0;
-                break;
-              case 3: // 0->3
-                cj = c0;
-                ck = c3;
-                j1 = i1;
-                j2 = i2;
-                j3 = i3;
-                kk = 1;
-                break;
-              case 4: // 4->5
-                cj = c4;
-                ck = c5;
-                j1 = i1;
-                j2 = i2;
-                j3 = i3+1;
-                kk = 0;
-                break;
-              case 5: // 5->6
-                cj = c5;
-                ck = c6;
-                j1 = i1+1;
-                j2 = i2;
-                j3 = i3+1;
-                kk = 1;
-                break;
-              case 6: // 7->6
-                cj = c7;
-                ck = c6;
-                j1 = i1;
-                j2 = i2+1;
-                j3 = i3+1;
-                kk = 0;
-                break;
-              case 7: // 4->7
-                cj = c4;
-                ck = c7;
-                j1 = i1;
-                j2 = i2;
-                j3 = i3+1;
-                kk = 1;
-                break;
-              case 8: // 0->4
-                cj = c0;
-                ck = c4;
-                j1 = i1;
-                j2 = i2;
-                j3 = i3;
-                kk = 2;
-                break;
-              case 9: // 1->5
-                cj = c1;
-                ck = c5;
-                j1 = i1+1;
-                j2 = i2;
-                j3 = i3;
-                kk = 2;
-                break;
-              case 10: // 3->7
-                cj = c3;
-                ck = c7;
-                j1 = i1;
-                j2 = i2+1;
-                j3 = i3;
-                kk = 2;
-                break;
-              default: // 2->6
-                cj = c2;
-                ck = c6;
-                j1 = i1+1;
-                j2 = i2+1;
-                j3 = i3;
-                kk = 2;
-              }
+          // For all triangle vertices (edge intersections), append the
+          // index of the vertex to the triangle list.
+          for (int ie=0; ie<ne; ++ie) {
+            int ix;
+            switch(edges[ie]) {
+            case 0: // 0->1
+              ix = ix0[i2  ][i1  ];
+              break;
+            case 1: // 1->2
+              ix = ix1[i2  ][i1+1];
+              break;
+            case 2: // 3->2
+              ix = ix0[i2+1][i1  ];
+              break;
+            case 3: // 0->3
+              ix = ix1[i2  ][i1  ];
+              break;
+            case 4: // 4->5
+              ix = jx0[i2  ][i1  ];
+              break;
+            case 5: // 5->6
+              ix = jx1[i2  ][i1+1];
+              break;
+            case 6: // 7->6
+              ix = jx0[i2+1][i1  ];
+              break;
+            case 7: // 4->7
+              ix = jx1[i2  ][i1  ];
+              break;
+            case 8: // 0->4
+              ix = ix2[i2  ][i1  ];
+              break;
+            case 9: // 1->5
+              ix = ix2[i2  ][i1+1];
+              break;
+            case 10: // 3->7
+              ix = ix2[i2+1][i1  ];
+              break;
+            default: // 2->6
+              ix = ix2[i2+1][i1+1];
+            }
+            tlist.add(ix);
+          }
+        }
+      }
+    }
+  }
 
-              int ix;
-              if (kk==0)      ix = _ix0[j3][j2][j1];
-              else if (kk==1) ix = _ix1[j3][j2][j1];
-              else            ix = _ix2[j3][j2][j1];
-
-              // If vertex not yet computed, compute and store coordinates,
-              // and optionally compute and store normal vector components.
-              if (ix<0) {
-                int k1,k2,k3;
-                double x1,x2,x3;
-                float dx = (c-cj)/(ck-cj);
-                switch(kk) {
-                case 0: // edge aligned with axis 1
-                  k1 = j1+1;
-                  k2 = j2;
-                  k3 = j3;
-                  x1 = f1+d1*(j1+dx);
-                  x2 = f2+d2*(j2   );
-                  x3 = f3+d3*(j3   );
-                  break;
-                case 1: // edge aligned with axis 2
-                  k1 = j1;
-                  k2 = j2+1;
-                  k3 = j3;
-                  x1 = f1+d1*(j1   );
-                  x2 = f2+d2*(j2+dx);
-                  x3 = f3+d3*(j3   );
-                  break;
-                default: // edge aligned with axis 3
-                  k1 = j1;
-                  k2 = j2;
-                  k3 = j3+1;
-                  x1 = f1+d1*(j1   );
-                  x2 = f2+d2*(j2   );
-                  x3 = f3+d3*(j3+dx);
-                }
-                ix = nx3;
-                if (kk==0)      _ix0[j3][j2][j1] = ix;
-                else if (kk==1) _ix1[j3][j2][j1] = ix;
-                else            _ix2[j3][j2][j1] = ix;
-                xlist.add((float)x1);
-                xlist.add((float)x2);
-                xlist.add((float)x3);
-                stlist.add(ix);
-                ++nx3;
-                if (ulist!=null) {
-                  computeNormalVector(j1,j2,j3,k1,k2,k3,
-                                      n1,n2,n3,d1,d2,d3,
-                                      dx,f,u);
-                  ulist.add(u[0]);
-                  ulist.add(u[1]);
-                  ulist.add(u[2]);
+  /*
+   * Numbers vertices for intersected edges aligned with axes 1 and 2 in the
+   * plane with index j3. If the vertex list is null, vertices are not
+   * computed and indices are stored as -1-k for vertex index k. Edges are
+   * always numbered in the same order, and only edges of cubes in marked
+   * blocks are visited. Because every intersected edge lies in marked
+   * blocks of both slabs adjacent to this plane, those slabs number the
+   * edges identically. Returns the number of vertices.
+   */
+  private int indexPlane(
+    int j3, float[][][] f, float c, boolean[][] bm, EdgeCache cache,
+    int[][] ix0, int[][] ix1, int nx, FloatList xlist, FloatList ulist)
+  {
+    int[] ja = cache.ja, jb = cache.jb;
+    float[][] fj3 = f[j3];
+    for (int j2=0; j2<n2; ++j2) {
+      float[] fj2 = fj3[j2];
+      float[] fk2 = (j2<n2-1)?fj3[j2+1]:null;
+      int ns = spans(bm,j2-1,j2,ja,jb);
+      for (int is=0; is<ns; ++is)
+      for (int j1=ja[is]; j1<=jb[is]; ++j1) {
+        float cj = fj2[j1];
+        if (j1<n1-1) {
+          float ck = fj2[j1+1];
+          if ((cj>c)!=(ck>c)) {
+            if (xlist!=null) {
+              ix0[j2][j1] = nx;
+              addVertex(j1,j2,j3,0,cj,ck,c,f,xlist,ulist,cache);
+            } else {
+              ix0[j2][j1] = -1-nx;
+            }
+            ++nx;
+          }
+        }
+        if (fk2!=null) {
+          float ck = fk2[j1];
+          if ((cj>c)!=(ck>c)) {
+            if (xlist!=null) {
+              ix1[j2][j1] = nx;
+              addVertex(j1,j2,j3,1,cj,ck,c,f,xlist,ulist,cache);
+            } else {
+              ix1[j2][j1] = -1-nx;
+            }
+            ++nx;
+          }
+        }
+      }
+    }
+    return nx;
+  }
+
+  /*
+   * Numbers and computes vertices for intersected edges aligned with axis 3
+   * between the planes with indices j3 and j3+1.
+   */
+  private int indexAxis3(
+    int j3, float[][][] f, float c, boolean[][] bm, EdgeCache cache,
+    int[][] ix2, int nx, FloatList xlist, FloatList ulist)
+  {
+    int[] ja = cache.ja, jb = cache.jb;
+    for (int j2=0; j2<n2; ++j2) {
+      float[] fj2 = f[j3  ][j2];
+      float[] fk2 = f[j3+1][j2];
+      int ns = spans(bm,j2-1,j2,ja,jb);
+      for (int is=0; is<ns; ++is)
+      for (int j1=ja[is]; j1<=jb[is]; ++j1) {
+        float cj = fj2[j1];
+        float ck = fk2[j1];
+        if ((cj>c)!=(ck>c)) {
+          ix2[j2][j1] = nx++;
+          addVertex(j1,j2,j3,2,cj,ck,c,f,xlist,ulist,cache);
+        }
+      }
+    }
+    return nx;
+  }
+
+  /*
+   * Computes the block min/max index. Each block contains BLOCK^3 cubes,
+   * and so its min and max are computed from (BLOCK+1)^3 image samples.
+   */
+  private void makeBlockIndex(float[][][] f) {
+    nb1 = max(1,(n1-2)/BLOCK+1);
+    int nb2 = max(1,(n2-2)/BLOCK+1);
+    int nb3 = max(1,(n3-2)/BLOCK+1);
+    _bmin = new float[nb3][nb2][nb1];
+    _bmax = new float[nb3][nb2][nb1];
+    updateBlocks(f,0,0,0,nb1-1,nb2-1,nb3-1);
+  }
+
+  /*
+   * Updates min/max values for blocks that contain any samples in the
+   * specified box, after values of those samples have changed.
+   */
+  private void updateBlockIndex(
+    float[][][] f, int k1, int k2, int k3, int j1, int j2, int j3)
+  {
+    // Adjacent blocks share samples on their boundaries, so a sample that
+    // lies on a boundary belongs to the block before it as well.
+    int nb2 = _bmin[0].length;
+    int nb3 = _bmin.length;
+    updateBlocks(f,
+      max(0,(k1-1)/BLOCK),max(0,(k2-1)/BLOCK),max(0,(k3-1)/BLOCK),
+      min(nb1-1,j1/BLOCK),min(nb2-1,j2/BLOCK),min(nb3-1,j3/BLOCK));
+  }
+
+  /*
+   * Computes min/max values for blocks in the specified range.
+   */
+  private void updateBlocks(
+    float[][][] f, int b1a, int b2a, int b3a, int b1b, int b2b, int b3b)
+  {
+    if (b3a>b3b) return;
+    final float[][][] ff = f;
+    final float[][][] bmin = _bmin;
+    final float[][][] bmax = _bmax;
+    final int fb1a = b1a, fb1b = b1b;
+    final int fb2a = b2a, fb2b = b2b;
+    Parallel.loop(b3a,b3b+1,new Parallel.LoopInt() {
+      public void compute(int b3) {
+        int i3a = b3*BLOCK, i3b = min(i3a+BLOCK,n3-1);
+        for (int b2=fb2a; b2<=fb2b; ++b2) {
+          int i2a = b2*BLOCK, i2b = min(i2a+BLOCK,n2-1);
+          for (int b1=fb1a; b1<=fb1b; ++b1) {
+            int i1a = b1*BLOCK, i1b = min(i1a+BLOCK,n1-1);
+            float fmin = ff[i3a][i2a][i1a];
+            float fmax = fmin;
+            for (int i3=i3a; i3<=i3b; ++i3) {
+              for (int i2=i2a; i2<=i2b; ++i2) {
+                float[] f32 = ff[i3][i2];
+                for (int i1=i1a; i1<=i1b; ++i1) {
+                  float fi = f32[i1];
+                  if (fi<fmin) fmin = fi;
+                  if (fi>fmax) fmax = fi;
                 }
               }
-              tlist.add(ix);
             }
+            bmin[b3][b2][b1] = fmin;
+            bmax[b3][b2][b1] = fmax;
           }
         }
       }
+    });
+  }
+
+  /*
+   * Marks blocks in the layer with index b3 that contain cubes intersected
+   * by the contour. Returns false, if no blocks are marked.
+   */
+  private boolean markBlocks(int b3, float c, boolean[][] bm) {
+    float[][] bmin = _bmin[b3];
+    float[][] bmax = _bmax[b3];
+    boolean any = false;
+    for (int b2=0; b2<bm.length; ++b2) {
+      for (int b1=0; b1<nb1; ++b1) {
+        bm[b2][b1] = bmin[b2][b1]<=c && bmax[b2][b1]>c;
+        any |= bm[b2][b1];
+      }
+    }
+    return any;
+  }
+
+  /*
+   * Computes spans [ja,jb] of sample indices in the 1st dimension for
+   * cubes with 2nd indices in [i2a,i2b] that lie in marked blocks. Cubes
+   * with 1st indices in [ja,jb) are in those blocks. If no blocks are
+   * marked, the single span [0,n1-1] is used. Returns the number of spans.
+   */
+  private int spans(boolean[][] bm, int i2a, int i2b, int[] ja, int[] jb) {
+    if (bm==null) {
+      ja[0] = 0;
+      jb[0] = n1-1;
+      return 1;
+    }
+    int b2a = max(0,i2a)/BLOCK;
+    int b2b = max(0,min(i2b,n2-2))/BLOCK;
+    int ns = 0;
+    for (int b1=0; b1<nb1; ++b1) {
+      boolean marked = false;
+      for (int b2=b2a; b2<=b2b && !marked; ++b2)
+        marked = bm[b2][b1];
+      if (marked) {
+        int j1a = b1*BLOCK;
+        int j1b = min(j1a+BLOCK,n1-1);
+        if (ns>0 && jb[ns-1]==j1a) {
+          jb[ns-1] = j1b;
+        } else {
+          ja[ns] = j1a;
+          jb[ns] = j1b;
+          ++ns;
+        }
+      }
+    }
+    return ns;
+  }
+
+  /*
+   * Computes and stores coordinates of the vertex on the edge from sample
+   * j to sample k, and optionally computes and stores the normal vector.
+   */
+  private void addVertex(
+    int j1, int j2, int j3, int kk, float cj, float ck, float c,
+    float[][][] f, FloatList xlist, FloatList ulist, EdgeCache cache)
+  {
+    int k1,k2,k3;
+    double x1,x2,x3;
+    float dx = (c-cj)/(ck-cj);
+    switch(kk) {
+    case 0: // edge aligned with axis 1
+      k1 = j1+1;
+      k2 = j2;
+      k3 = j3;
+      x1 = f1+d1*(j1+dx);
+      x2 = f2+d2*(j2   );
+      x3 = f3+d3*(j3   );
+      break;
+    case 1: // edge aligned with axis 2
+      k1 = j1;
+      k2 = j2+1;
+      k3 = j3;
+      x1 = f1+d1*(j1   );
+      x2 = f2+d2*(j2+dx);
+      x3 = f3+d3*(j3   );
+      break;
+    default: // edge aligned with axis 3
+      k1 = j1;
+      k2 = j2;
+      k3 = j3+1;
+      x1 = f1+d1*(j1   );
+      x2 = f2+d2*(j2   );
+      x3 = f3+d3*(j3+dx);
+    }
+    xlist.add((float)x1);
+    xlist.add((float)x2);
+    xlist.add((float)x3);
+    if (_normals) {
+      float[] u = cache.u;
+      if (cache.g!=null) {
+        cache.g.computeNormalVector(j1,j2,j3,k1,k2,k3,d1,d2,d3,dx,u);
+      } else {
+        computeNormalVector(j1,j2,j3,k1,k2,k3,
+                            n1,n2,n3,d1,d2,d3,
+                            dx,f,u);
+      }
+      ulist.add(u[0]);
+      ulist.add(u[1]);
+      ulist.add(u[2]);
     }
   }
 
   /*
-   * Computes the normal vector.
+   * Computes the normal vector. Also used by flying edges.
    */
-  private void computeNormalVector(
+  static void computeNormalVector(
     int j1, int j2, int j3, int k1, int k2, int k3,
     int n1, int n2, int n3, double d1, double d2, double d3,
     double dx, float[][][] f, float[] u)
@@ -584,8 +1598,9 @@ public class MarchingCubes {
    * most of those 256 cases are complements or rotations of 16 base cases.
    * Comments at end of each line are case number and base-case number.
    * This table was adopted from one in VTK, the Visualization Toolkit.
+   * Also used by flying edges.
    */
-  private static final int[][] _edges = { 
+  static final int[][] _edges = { 
     {}, // 0 0
     { 0, 3, 8}, // 1 1
     { 0, 9, 1}, // 2 1
@@ -8,23 +8,32 @@ package cae.vis;
 
 import cae.util.FloatList;
 import cae.util.IntList;
+import cae.util.LongList;
 import edu.mines.jtk.dsp.Sampling;
+import edu.mines.jtk.util.Parallel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import static java.lang.Math.*;
 
 /**
  * The marching cubes algorithm (Lorenson and Cline, 1987).
  * This marching cubes is also adapted to be fast by implementing surface
- * tracking (Shekhar et al, 1996). This algorithm makes the assumption that
- * the surface contour is a single connected surface.
+ * tracking (Shekhar et al, 1996). Only those parts of a contour that are
+ * connected to cubes found from seeds are extracted, and only cubes in
+ * those parts are visited.
  * @author Dave Hale and Chris Engelsma, Colorado School of Mines
  * @version 2010.07.07
  */
 public class MarchingCubesTracking {
 
   public enum Concurrency {
-    PARALLEL, // TODO
+    PARALLEL,
     SERIAL
   };
 
@@ -68,6 +77,38 @@ public class MarchingCubesTracking {
     _s1 = s1;
     _s2 = s2;
     _s3 = s3;
+    _bmin = null;
+    _bmax = null;
+  }
+
+  /**
+   * Sets the image for this marching cubes dataset.
+   * This method must be called again if values of the current image are
+   * modified, so that any information cached for that image is discarded.
+   * @param f 3D array of image values.
+   */
+  public void setImage(float[][][] f) {
+    _f = f;
+    _bmin = null;
+    _bmax = null;
+    _grad = null;
+  }
+
+  /**
+   * Sets whether to use a block min/max index of image values when
+   * searching for a cube to begin following a surface without a seed.
+   * The index is built when first needed and kept for all subsequent
+   * contours of the same image, so that only blocks of cubes with values
+   * that span an isovalue are searched.
+   * The default is false.
+   * @param index true, if using the index; false, otherwise.
+   */
+  public void setBlockIndex(boolean index) {
+    _index = index;
+    if (!index) {
+      _bmin = null;
+      _bmax = null;
+    }
   }
 
   /**
@@ -78,6 +119,21 @@ public class MarchingCubesTracking {
     _normals = normals;
   }
 
+  /**
+   * Sets whether to cache gradients of image values for normal vectors.
+   * Gradients are computed when first needed and kept for all subsequent
+   * contours of the same image, so that the cost of computing normal
+   * vectors is much less, but memory required is that of three images.
+   * Gradients are discarded when the image is set.
+   * The default is false.
+   * @param cache true, if caching gradients; false, otherwise.
+   */
+  public void setGradientCache(boolean cache) {
+    _gcache = cache;
+    if (!cache)
+      _grad = null;
+  }
+
   /**
    * Swaps the first and third dimension.
    * @param swap13 true, if swapping; false, otherwise.
@@ -88,17 +144,19 @@ public class MarchingCubesTracking {
 
   /**
    * Gets a surface contour for a specified value.
+   * The surface is followed from the first intersected cube found.
    * @param c a contour value to be extracted.
    * @return the extracted contour.
    */
   public Contour getContour(float c) {
-    return getContour(c,-1,-1,-1,Concurrency.SERIAL);
+    return getContour(c,null,Concurrency.SERIAL);
   }
 
   public Contour getContourLong(float c) {
     IntList tlist = new IntList();
     FloatList xlist = new FloatList();
     FloatList ulist = _normals?new FloatList():null;
+    updateGradients(_s1.getCount(),_s2.getCount(),_s3.getCount());
     march(_s1.getCount(),_s2.getCount(),_s3.getCount(),
           _s1.getDelta(),_s2.getDelta(),_s3.getDelta(),
           _s1.getFirst(),_s2.getFirst(),_s3.getFirst(),
@@ -132,124 +190,107 @@ public class MarchingCubesTracking {
    * @param i3 coordinate of seed point in 3rd dimension.
    * @param i2 coordinate of seed point in 2nd dimension.
    * @param i1 coordinate of seed point in 1st dimension.
+   * @param con the concurrency.
    * @return the extracted contour.
    */
   public Contour getContour(
     float c, int i3, int i2, int i1, Concurrency con)
   {
-    nx = 0;
-
-    _n3 = _s3.getCount();
-    _n2 = _s2.getCount();
-    _n1 = _s1.getCount();
-
-    _d3 = _s3.getDelta();
-    _d2 = _s2.getDelta();
-    _d1 = _s1.getDelta();
-
-    _f3 = _s3.getFirst();
-    _f2 = _s2.getFirst();
-    _f1 = _s1.getFirst();
-
-    tlist = new IntList();
-    xlist = new FloatList();
-    ulist = _normals?new FloatList():null;
-
-    _i = new int[_n3][_n2][_n1];
-
-    int[] ix;
-    if (isInBounds(i3,i2,i1)) ix = findFirstCube(c,i3,i2,i1);
-    else ix = findFirstCube(c);
-
-    if (ix!=null) marchFollow(ix[0],ix[1],ix[2],c);
-
-    /*
-    if (ix!=null && con==Concurrency.SERIAL)
-      marchSerial(_f,c,_n1,_n2,_n3,_d1,_d2,_d3,_f1,_f2,_f3);
-    if (ix!=null && con==Concurrency.PARALLEL)
-      marchParallel();
-      */
-
-    Contour contour = new Contour();
-    contour.i = tlist.trim();
-    contour.x = xlist.trim();
-    contour.u = _normals?ulist.trim():null;
-
-    tlist.clear();
-    xlist.clear();
-    ulist.clear();
+    return getContour(c,new int[][]{{i3,i2,i1}},con);
+  }
 
-    if (_swap13) {
-      float[] x = contour.x;
-      float[] u = contour.u;
-      for (int i=x.length-3; i>=0; i-=3) {
-        float x1 = x[i  ];
-        float x3 = x[i+2];
-        x[i  ] = x3;
-        x[i+2] = x1;
-        if (u!=null) {
-          float u1 = u[i  ];
-          float u3 = u[i+2];
-          u[i  ] = u3;
-          u[i+2] = u1;
-        }
-      }
+  /**
+   * Gets a surface contour for a specified value, following the surface
+   * from multiple seeds. For each seed {i3,i2,i1}, cubes with indices i3
+   * and i2 are searched along the 1st dimension for the intersected cube
+   * nearest to index i1, and the surface is followed from there. If no
+   * seeds are in bounds, the surface is followed from the first intersected
+   * cube found. That search scans all cubes in order, unless the block
+   * index enabled with {@link #setBlockIndex(boolean)} is used to skip
+   * blocks of cubes with min/max values that do not span the value.
+   * <p>
+   * Cubes visited are marked with one bit per cube, in pages that are
+   * allocated only where the surface is, so that time and memory required
+   * are proportional to the size of the surface extracted, not the size
+   * of the image.
+   * <p>
+   * Surfaces are followed with explicit queues of cubes, not recursion, so
+   * that large surfaces do not overflow the stack. With parallel
+   * concurrency, surfaces are followed by multiple threads, each of which
+   * offers half of its queue to other threads when they are idle.
+   * @param c a contour value to be extracted.
+   * @param seeds array of seeds {i3,i2,i1}; null, if none.
+   * @param con the concurrency.
+   * @return the extracted contour.
+   */
+  public Contour getContour(float c, int[][] seeds, Concurrency con) {
+    updateSampling();
+    updateGradients(_n1,_n2,_n3);
+    _c = c;
+    _visited = new CubeSet(_m1,_m2,_m3);
+    _keys = new ConcurrentLinkedQueue<LongList>();
+    LongList queue = new LongList();
+    findSeeds(c,seeds,queue);
+    if (queue.n>0 && con==Concurrency.PARALLEL) {
+      _pool.invoke(new Follower(queue));
+    } else if (queue.n>0) {
+      LongList keys = new LongList();
+      while (queue.n>0)
+        followCube(queue.a[--queue.n],queue,keys);
+      _keys.add(keys);
     }
-
+    Contour contour = makeContour(con==Concurrency.PARALLEL);
+    _visited = null;
+    _keys = null;
     return contour;
   }
 
   ///////////////////////////////////////////////////////////////////////////
   // private
 
-  private FloatList ulist = new FloatList();
-  private FloatList xlist = new FloatList();
-  private IntList tlist = new IntList();
   private Sampling _s1,_s2,_s3;
   private int _n1,_n2,_n3;
   private double _d1,_d2,_d3;
   private double _f1,_f2,_f3;
   private float[][][] _f;
-  private int[][][] _i; // Surface following bookkeeping array
-  private Index vi = new Index();
   private boolean _normals = true;
   private boolean _swap13 = true;
-  private int nx = 0;
+  private boolean _gcache = false;
+  private boolean _index = false; // use the block min/max index?
+  private Gradients _grad; // cached gradients, if any
 
-  private void marchSerial(
-    float[][][] f, float c,
-    int n1, int n2, int n3,
-    double d1, double d2, double d3,
-    double f1, double f2, double f3)
-  {
-    System.out.println("Solving Serial");
-    int nx = 0;
-    for (int i3=0; i3<_n3-1; ++i3) {
-      marchSlab(i3,_f,c,n1,n2,n3,d1,d2,d3,f1,f2,f3,nx);
-    }
-  }
+  // State of surface following: the contour value, numbers of cubes, cubes
+  // visited, and lists of keys for triangle vertices.
+  private float _c;
+  private int _m1,_m2,_m3;
+  private CubeSet _visited;
+  private ConcurrentLinkedQueue<LongList> _keys;
 
-  private void marchParallel() {
+  // Min/max image values for blocks of cubes, used to find seeds.
+  private float[][][] _bmin,_bmax;
 
+  private void updateSampling() {
+    _n1 = _s1.getCount();
+    _n2 = _s2.getCount();
+    _n3 = _s3.getCount();
+    _d1 = _s1.getDelta();
+    _d2 = _s2.getDelta();
+    _d3 = _s3.getDelta();
+    _f1 = _s1.getFirst();
+    _f2 = _s2.getFirst();
+    _f3 = _s3.getFirst();
+    _m1 = max(0,_n1-1);
+    _m2 = max(0,_n2-1);
+    _m3 = max(0,_n3-1);
   }
 
-  private void marchSlab(
-    int i3, float[][][] f, float c,
-    int n1, int n2, int n3,
-    double d1, double d2, double d3,
-    double f1, double f2, double f3,
-    int nx)
-  {
-    float[] u = new float[3];
-    for (int i2=0; i2<n2-1; ++i2) {
-      for (int i1=0; i1<n1-1; ++i1) {
-
-      }
-    }
+  private void updateGradients(int n1, int n2, int n3) {
+    if (_gcache && _normals && n1>0 && n2>0 && n3>0 &&
+        (_grad==null || !_grad.fits(n1,n2,n3)))
+      _grad = new Gradients(_f);
   }
 
-
-    private void march(
+  private void march(
     int n1, int n2, int n3,
     double d1, double d2, double d3,
     double f1, double f2, double f3,
@@ -461,10 +502,15 @@ public class MarchingCubesTracking {
                   xlist.add((float)x2);
                   xlist.add((float)x3);
                   ++nx;
-                  if (ulist!=null) {
+                  if (ulist!=null && _grad!=null) {
+                    _grad.computeNormalVector(j1,j2,j3,k1,k2,k3,
+                                              d1,d2,d3,dx,u);
+                  } else if (ulist!=null) {
                     computeNormalVector(j1,j2,j3,k1,k2,k3,
                                         n1,n2,n3,d1,d2,d3,
                                         dx,f,u);
+                  }
+                  if (ulist!=null) {
                     ulist.add(u[0]);
                     ulist.add(u[1]);
                     ulist.add(u[2]);
@@ -532,288 +578,423 @@ public class MarchingCubesTracking {
    *            s4
    */
 
-  /**
-   * Marches the cubes.
-   * Cubes are marched using surface tracking. This means that the next cubes
-   * in the recursion are determined by the edge intersections of the current
-   * cube. This algorithm works ideally for continuous surfaces.
-   * @param i3 index value in dimension three.
-   * @param i2 index value in dimension two.
-   * @param i1 index value in dimension one.
-   * @param c contour value.
+  /* Pool of threads that follow surfaces. */
+  private static final ForkJoinPool _pool = new ForkJoinPool();
+
+  /* Minimum number of queued cubes for which half are shared. */
+  private static final int SHARE = 64;
+
+  /* For each edge, offsets of sample j in the cube and the axis to k. */
+  private static final int[][] EDGE_SAMPLES = {
+    {0,0,0,0}, {1,0,0,1}, {0,1,0,0}, {0,0,0,1},
+    {0,0,1,0}, {1,0,1,1}, {0,1,1,0}, {0,0,1,1},
+    {0,0,0,2}, {1,0,0,2}, {0,1,0,2}, {1,1,0,2}
+  };
+
+  /* For each edge, bits for the two faces of the cube that contain it.
+   * Bits 0 and 1 are faces with low and high indices in the 1st
+   * dimension; bits 2 and 3, the 2nd dimension; bits 4 and 5, the 3rd.
+   * A cube adjacent to a face with an intersected edge is intersected.
    */
-  private void marchFollow(int i3, int i2, int i1, float c) {
-    float[] u = new float[3];
+  private static final int[] EDGE_FACES = new int[12];
+  static {
+    for (int e=0; e<12; ++e) {
+      int[] d = EDGE_SAMPLES[e];
+      for (int k=0; k<3; ++k) {
+        if (k!=d[3])
+          EDGE_FACES[e] |= 1<<(2*k+d[k]);
+      }
+    }
+  }
 
-    int[] v1 = new int[3];
-    int[] v2 = new int[3];
+  /*
+   * A set of cubes, with one bit per cube, to which cubes may be added
+   * concurrently. Bits for pages of 16*16*16 cubes are allocated only
+   * when a cube in that page is first added. The table of pages requires
+   * one reference for every 4096 cubes.
+   */
+  private static class CubeSet {
+    CubeSet(int m1, int m2, int m3) {
+      _np1 = (m1+15)>>4;
+      _np2 = (m2+15)>>4;
+      int np3 = (m3+15)>>4;
+      _pages = new AtomicReferenceArray<AtomicLongArray>(_np1*_np2*np3);
+    }
+    boolean add(int i1, int i2, int i3) {
+      int ip = (i1>>4)+_np1*((i2>>4)+_np2*(i3>>4));
+      AtomicLongArray page = _pages.get(ip);
+      if (page==null) {
+        page = new AtomicLongArray(64);
+        if (!_pages.compareAndSet(ip,null,page))
+          page = _pages.get(ip);
+      }
+      int ib = (i1&15)|(i2&15)<<4|(i3&15)<<8;
+      int i = ib>>>6;
+      long b = 1L<<(ib&63);
+      for (;;) {
+        long bits = page.get(i);
+        if ((bits&b)!=0) return false;
+        if (page.compareAndSet(i,bits,bits|b)) return true;
+      }
+    }
+    private int _np1,_np2;
+    private AtomicReferenceArray<AtomicLongArray> _pages;
+  }
+
+  /*
+   * Follows the surface from a queue of cubes. While following, if no
+   * tasks are queued for other threads to steal, half of the queue is
+   * given to a new task, so that idle threads can follow other parts of
+   * the surface.
+   */
+  private class Follower extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    LongList queue;
+    Follower(LongList queue) {
+      this.queue = queue;
+    }
+    protected void compute() {
+      LongList keys = new LongList();
+      ArrayList<Follower> shared = new ArrayList<Follower>();
+      while (queue.n>0) {
+        if (queue.n>=SHARE && getQueuedTaskCount()==0) {
+          Follower task = new Follower(split(queue));
+          task.fork();
+          shared.add(task);
+        }
+        followCube(queue.a[--queue.n],queue,keys);
+      }
+      _keys.add(keys);
+      for (Follower task:shared)
+        task.join();
+    }
+  }
+
+  /*
+   * Removes the oldest half of a queue of cubes and returns it.
+   */
+  private static LongList split(LongList queue) {
+    int m = queue.n/2;
+    LongList half = new LongList();
+    half.a = Arrays.copyOf(queue.a,max(m,1));
+    half.n = m;
+    System.arraycopy(queue.a,m,queue.a,0,queue.n-m);
+    queue.n -= m;
+    return half;
+  }
+
+  /*
+   * Adds a cube with index k to a queue, if not already visited.
+   */
+  private void visit(long k, int i1, int i2, int i3, LongList queue) {
+    if (_visited.add(i1,i2,i3))
+      queue.add(k);
+  }
+
+  /*
+   * Follows the surface through one cube. Keys for the vertices of its
+   * triangles are added to a list, and adjacent cubes that are intersected
+   * and not yet visited are added to the queue. The key for a vertex is
+   * 3*j+kk, where j is the index of sample j on its edge, and kk is the
+   * axis to sample k.
+   */
+  private void followCube(long k, LongList queue, LongList keys) {
+    long m12 = (long)_m1*_m2;
+    int i3 = (int)(k/m12);
+    int i2 = (int)((k%m12)/_m1);
+    int i1 = (int)(k%_m1);
 
     // Eight corner values
-    float c0 = _f[i3  ][i2  ][i1  ];
-    float c1 = _f[i3  ][i2  ][i1+1];
-    float c2 = _f[i3  ][i2+1][i1+1];
-    float c3 = _f[i3  ][i2+1][i1  ];
-    float c4 = _f[i3+1][i2  ][i1  ];
-    float c5 = _f[i3+1][i2  ][i1+1];
-    float c6 = _f[i3+1][i2+1][i1+1];
-    float c7 = _f[i3+1][i2+1][i1  ];
-
-    boolean s0 = false, s1 = false, s2 = false;
-    boolean s3 = false, s4 = false, s5 = false;
+    float[] f00 = _f[i3  ][i2  ];
+    float[] f01 = _f[i3  ][i2+1];
+    float[] f10 = _f[i3+1][i2  ];
+    float[] f11 = _f[i3+1][i2+1];
+    float c = _c;
 
     // Case index.
     int ci = 0;
-    if (c0>c) ci +=   1;
-    if (c1>c) ci +=   2;
-    if (c2>c) ci +=   4;
-    if (c3>c) ci +=   8;
-    if (c4>c) ci +=  16;
-    if (c5>c) ci +=  32;
-    if (c6>c) ci +=  64;
-    if (c7>c) ci += 128;
-
-    if (ci>0 && ci<255) {
-
-      // Look up edges intersected.
-      int[] e = _edges[ci];
-      int ne = e.length;
-
-      // For all triangles
-      for (int ie=0; ie<ne; ie+=3) {
-
-        // For each of three triangle vertices
-        for (int je=0; je<3; ++je) {
-          int edge = e[ie+je];
-          float cj,ck;
-          int j1,j2,j3,kk;
-          switch(edge) {
-            case 0: // 0->1
-              cj = c0;
-              ck = c1;
-              j1 = i1;
-              j2 = i2;
-              j3 = i3;
-              kk = 0;
-              s0 = s4 = true;
-              break;
-            case 1: // 1->2
-              cj = c1;
-              ck = c2;
-              j1 = i1+1;
-              j2 = i2;
-              j3 = i3;
-              kk = 1;
-              s0 = s1 = true;
-              break;
-            case 2: // 3->2
-              cj = c3;
-              ck = c2;
-              j1 = i1;
-              j2 = i2+1;
-              j3 = i3;
-              kk = 0;
-              s0 = s5 = true;
-              break;
-            case 3: // 0->3
-              cj = c0;
-              ck = c3;
-              j1 = i1;
-              j2 = i2;
-              j3 = i3;
-              kk = 1;
-              s0 = s3 = true;
-              break;
-            case 4: // 4->5
-              cj = c4;
-              ck = c5;
-              j1 = i1;
-              j2 = i2;
-              j3 = i3+1;
-              kk = 0;
-              s4 = s2 = true;
-              break;
-            case 5: // 5->6
-              cj = c5;
-              ck = c6;
-              j1 = i1+1;
-              j2 = i2;
-              j3 = i3+1;
-              kk = 1;
-              s1 = s2 = true;
-              break;
-            case 6: // 7->6
-              cj = c7;
-              ck = c6;
-              j1 = i1;
-              j2 = i2+1;
-              j3 = i3+1;
-              kk = 0;
-              s2 = s5 = true;
-              break;
-            case 7: // 4->7
-              cj = c4;
-              ck = c7;
-              j1 = i1;
-              j2 = i2;
-              j3 = i3+1;
-              kk = 1;
-              s3 = s2 = true;
-              break;
-            case 8: // 0-> 4
-              cj = c0;
-              ck = c4;
-              j1 = i1;
-              j2 = i2;
-              j3 = i3;
-              kk = 2;
-              s4 = s3 = true;
-              break;
-            case 9: // 1->5
-              cj = c1;
-              ck = c5;
-              j1 = i1+1;
-              j2 = i2;
-              j3 = i3;
-              kk = 2;
-              s4 = s1 = true;
-              break;
-            case 10: // 3->7
-              cj = c3;
-              ck = c7;
-              j1 = i1;
-              j2 = i2+1;
-              j3 = i3;
-              kk = 2;
-              s5 = s3 = true;
-              break;
-            default: // 2->6
-              cj = c2;
-              ck = c6;
-              j1 = i1+1;
-              j2 = i2+1;
-              j3 = i3;
-              kk = 2;
-              s1 = s5 = true;
-          }
+    if (f00[i1  ]>c) ci +=   1;
+    if (f00[i1+1]>c) ci +=   2;
+    if (f01[i1+1]>c) ci +=   4;
+    if (f01[i1  ]>c) ci +=   8;
+    if (f10[i1  ]>c) ci +=  16;
+    if (f10[i1+1]>c) ci +=  32;
+    if (f11[i1+1]>c) ci +=  64;
+    if (f11[i1  ]>c) ci += 128;
+    if (ci==0 || ci==255) return;
+
+    // Vertices of triangles, and faces with intersected edges.
+    int[] e = _edges[ci];
+    int ne = e.length;
+    int faces = 0;
+    for (int ie=0; ie<ne; ++ie) {
+      int[] d = EDGE_SAMPLES[e[ie]];
+      long j = (i1+d[0])+_n1*((i2+d[1])+(long)_n2*(i3+d[2]));
+      keys.add(3*j+d[3]);
+      faces |= EDGE_FACES[e[ie]];
+    }
 
-          v1[0] = j1; v1[1] = j2; v1[2] = j3;
-          v2[0] = j1; v2[1] = j2; v2[2] = j3;
-          v2[kk] += 1;
-            int k1,k2,k3;
-            double x1,x2,x3;
-            float dx = (c-cj)/(ck-cj);
-            switch(kk) {
-              case 0: // edge aligned with axis 1
-                k1 = j1+1;
-                k2 = j2;
-                k3 = j3;
-                x1 = _f1+_d1*(j1+dx);
-                x2 = _f2+_d2*(j2   );
-                x3 = _f3+_d3*(j3   );
-                break;
-              case 1: // edge aligned with axis 2
-                k1 = j1;
-                k2 = j2+1;
-                k3 = j3;
-                x1 = _f1+_d1*(j1   );
-                x2 = _f2+_d2*(j2+dx);
-                x3 = _f3+_d3*(j3   );
-                break;
-              default: // edge aligned with axis 3
-                k1 = j1;
-                k2 = j2;
-                k3 = j3+1;
-                x1 = _f1+_d1*(j1   );
-                x2 = _f2+_d2*(j2   );
-                x3 = _f3+_d3*(j3+dx);
-            }
-            vi.addIndex(v1,v2,nx++);
-            xlist.add((float)x1);
-            xlist.add((float)x2);
-            xlist.add((float)x3);
-            if (ulist!=null) {
-              computeNormalVector(j1,j2,j3,k1,k2,k3,
-                                 _s1.getCount(),_s2.getCount(),_s3.getCount(),
-                                 _s1.getDelta(),_s2.getDelta(),_s3.getDelta(),
-                                 dx,_f,u);
-              ulist.add(u[0]);
-              ulist.add(u[1]);
-              ulist.add(u[2]);
-            }
-          // Append index of vertex to triangle list
-          tlist.add(nx);
+    // Adjacent cubes.
+    if ((faces& 1)!=0 && i1>0    ) visit(k-1  ,i1-1,i2,i3,queue);
+    if ((faces& 2)!=0 && i1<_m1-1) visit(k+1  ,i1+1,i2,i3,queue);
+    if ((faces& 4)!=0 && i2>0    ) visit(k-_m1,i1,i2-1,i3,queue);
+    if ((faces& 8)!=0 && i2<_m2-1) visit(k+_m1,i1,i2+1,i3,queue);
+    if ((faces&16)!=0 && i3>0    ) visit(k-m12,i1,i2,i3-1,queue);
+    if ((faces&32)!=0 && i3<_m3-1) visit(k+m12,i1,i2,i3+1,queue);
+  }
+
+  /*
+   * Makes a contour from the keys of all triangle vertices. Keys are
+   * sorted to find unique vertices, each of which is computed only once.
+   */
+  private Contour makeContour(boolean parallel) {
+    int m = 0;
+    for (LongList keys:_keys)
+      m += keys.n;
+    final long[] k = new long[m];
+    m = 0;
+    for (LongList keys:_keys) {
+      System.arraycopy(keys.a,0,k,m,keys.n);
+      m += keys.n;
+    }
+    long[] v = Arrays.copyOf(k,m);
+    Arrays.sort(v);
+    int nx = 0;
+    for (int i=0; i<m; ++i) {
+      if (nx==0 || v[i]!=v[nx-1])
+        v[nx++] = v[i];
+    }
+    final long[] kx = v;
+    final int fnx = nx;
+    final Contour contour = new Contour();
+    contour.i = new int[m];
+    contour.x = new float[3*nx];
+    contour.u = _normals?new float[3*nx]:null;
+
+    // Chunks of triangle indices and vertices.
+    final int nchunk = 4096;
+    final int mc = (m+nchunk-1)/nchunk;
+    final int nc = (nx+nchunk-1)/nchunk;
+    loop(parallel,mc+nc,new Parallel.LoopInt() {
+      public void compute(int ic) {
+        if (ic<mc) {
+          int[] t = contour.i;
+          int ia = ic*nchunk, ib = min(ia+nchunk,k.length);
+          for (int i=ia; i<ib; ++i)
+            t[i] = Arrays.binarySearch(kx,0,fnx,k[i]);
+        } else {
+          float[] u = new float[3];
+          int ia = (ic-mc)*nchunk, ib = min(ia+nchunk,fnx);
+          for (int i=ia; i<ib; ++i)
+            addVertex(i,kx[i],contour,u);
         }
       }
+    });
+    return contour;
+  }
 
-      // Determines which direction to continue.
-      for (int ie=0; ie<ne; ie++) {
-        if (e[ie]== 0) s0 = s4 = true;
-        if (e[ie]== 1) s0 = s1 = true;
-        if (e[ie]== 2) s0 = s5 = true;
-        if (e[ie]== 3) s0 = s3 = true;
-        if (e[ie]== 4) s2 = s4 = true;
-        if (e[ie]== 5) s2 = s1 = true;
-        if (e[ie]== 6) s2 = s5 = true;
-        if (e[ie]== 7) s2 = s3 = true;
-        if (e[ie]== 8) s4 = s3 = true;
-        if (e[ie]== 9) s4 = s1 = true;
-        if (e[ie]==10) s5 = s3 = true;
-        if (e[ie]==11) s5 = s1 = true;
-      }
+  private static void loop(boolean parallel, int n, Parallel.LoopInt body) {
+    if (parallel && n>0) {
+      Parallel.loop(n,body);
+    } else {
+      for (int i=0; i<n; ++i)
+        body.compute(i);
+    }
+  }
 
-      // Mark this index as done.
-      _i[i3][i2][i1] = 1;
+  /*
+   * Computes coordinates and, optionally, the normal vector of the vertex
+   * with index ix and the specified key.
+   */
+  private void addVertex(int ix, long key, Contour contour, float[] u) {
+    int kk = (int)(key%3);
+    long j = key/3;
+    long n12 = (long)_n1*_n2;
+    int j3 = (int)(j/n12);
+    int j2 = (int)((j%n12)/_n1);
+    int j1 = (int)(j%_n1);
+    int k1 = j1, k2 = j2, k3 = j3;
+    double x1 = _f1+_d1*j1;
+    double x2 = _f2+_d2*j2;
+    double x3 = _f3+_d3*j3;
+    float cj = _f[j3][j2][j1];
+    float ck;
+    float dx;
+    switch(kk) {
+    case 0: // edge aligned with axis 1
+      k1 = j1+1;
+      ck = _f[k3][k2][k1];
+      dx = (_c-cj)/(ck-cj);
+      x1 = _f1+_d1*(j1+dx);
+      break;
+    case 1: // edge aligned with axis 2
+      k2 = j2+1;
+      ck = _f[k3][k2][k1];
+      dx = (_c-cj)/(ck-cj);
+      x2 = _f2+_d2*(j2+dx);
+      break;
+    default: // edge aligned with axis 3
+      k3 = j3+1;
+      ck = _f[k3][k2][k1];
+      dx = (_c-cj)/(ck-cj);
+      x3 = _f3+_d3*(j3+dx);
+    }
+    int i = 3*ix;
+    float[] x = contour.x;
+    x[i  ] = (float)(_swap13?x3:x1);
+    x[i+1] = (float)x2;
+    x[i+2] = (float)(_swap13?x1:x3);
+    if (_normals) {
+      if (_grad!=null) {
+        _grad.computeNormalVector(j1,j2,j3,k1,k2,k3,_d1,_d2,_d3,dx,u);
+      } else {
+        computeNormalVector(j1,j2,j3,k1,k2,k3,_n1,_n2,_n3,_d1,_d2,_d3,
+                            dx,_f,u);
+      }
+      float[] un = contour.u;
+      un[i  ] = _swap13?u[2]:u[0];
+      un[i+1] = u[1];
+      un[i+2] = _swap13?u[0]:u[2];
+    }
+  }
 
-      // Recursion
-      if (s0 && canContinue(i3-1,i2,i1)) marchFollow(i3-1,i2,i1,c);
-      if (s2 && canContinue(i3+1,i2,i1)) marchFollow(i3+1,i2,i1,c);
-      if (s3 && canContinue(i3,i2-1,i1)) marchFollow(i3,i2-1,i1,c);
-      if (s1 && canContinue(i3,i2+1,i1)) marchFollow(i3,i2+1,i1,c);
-      if (s4 && canContinue(i3,i2,i1-1)) marchFollow(i3,i2,i1-1,c);
-      if (s5 && canContinue(i3,i2,i1+1)) marchFollow(i3,i2,i1+1,c);
+  /*
+   * Finds cubes from which to follow the surface, and adds them to a queue.
+   */
+  private void findSeeds(float c, int[][] seeds, LongList queue) {
+    boolean any = false;
+    if (seeds!=null) {
+      for (int[] seed:seeds) {
+        if (seed!=null && isInBounds(seed[0],seed[1],seed[2])) {
+          any = true;
+          long k = findFirstCube(c,seed[0],seed[1],seed[2]);
+          if (k>=0) visit(k,queue);
+        }
+      }
+    }
+    if (!any) {
+      long k = findFirstCube(c);
+      if (k>=0) visit(k,queue);
     }
   }
 
+  /*
+   * Adds a cube with index k to a queue, if not already visited.
+   */
+  private void visit(long k, LongList queue) {
+    long m12 = (long)_m1*_m2;
+    visit(k,(int)(k%_m1),(int)((k%m12)/_m1),(int)(k/m12),queue);
+  }
+
   /**
-   * Searches the dataset for the marching cubes starting point the slow way.
-   * This is implemented if no seed point is provided.
+   * Searches the dataset for the marching cubes starting point.
+   * This is implemented if no seed point is provided. If using the block
+   * index, only blocks of cubes with min/max values that span the contour
+   * value are searched.
    * @param c the contour value.
-   * @return the (z,y,x) of the starting index; null, if none.
+   * @return the index of the starting cube; -1, if none.
    */
-  private int[] findFirstCube(float c) {
-    for (int i3=0; i3<_n3-1; ++i3) {
-      for (int i2=0; i2<_n2-1; ++i2) {
-        for (int i1=0; i1<_n1-1; ++i1) {
-          if (isValidCube(i3,i2,i1,c))
-            return new int[]{i3,i2,i1};
+  private long findFirstCube(float c) {
+    if (_m1==0 || _m2==0 || _m3==0) return -1;
+    if (!_index) {
+      for (int i3=0; i3<_m3; ++i3) {
+        for (int i2=0; i2<_m2; ++i2) {
+          for (int i1=0; i1<_m1; ++i1) {
+            if (isValidCube(i3,i2,i1,c))
+              return i1+_m1*(i2+(long)_m2*i3);
+          }
+        }
+      }
+      return -1;
+    }
+    updateBlockIndex();
+    int nb3 = _bmin.length;
+    int nb2 = _bmin[0].length;
+    int nb1 = _bmin[0][0].length;
+    for (int b3=0; b3<nb3; ++b3) {
+      for (int b2=0; b2<nb2; ++b2) {
+        for (int b1=0; b1<nb1; ++b1) {
+          if (_bmin[b3][b2][b1]>c || _bmax[b3][b2][b1]<=c)
+            continue;
+          int i1a = b1*BLOCK, i1b = min(i1a+BLOCK,_m1);
+          int i2a = b2*BLOCK, i2b = min(i2a+BLOCK,_m2);
+          int i3a = b3*BLOCK, i3b = min(i3a+BLOCK,_m3);
+          for (int i3=i3a; i3<i3b; ++i3) {
+            for (int i2=i2a; i2<i2b; ++i2) {
+              for (int i1=i1a; i1<i1b; ++i1) {
+                if (isValidCube(i3,i2,i1,c))
+                  return i1+_m1*(i2+(long)_m2*i3);
+              }
+            }
+          }
         }
       }
     }
-    return null;
+    return -1;
+  }
+
+  /* Number of cubes per block in each dimension of the block index. */
+  private static final int BLOCK = 8;
+
+  /*
+   * Builds the index of min/max values for blocks of cubes, if not already
+   * built. The values for a block are those of all samples of its cubes.
+   */
+  private void updateBlockIndex() {
+    final int nb1 = max(1,(_m1+BLOCK-1)/BLOCK);
+    final int nb2 = max(1,(_m2+BLOCK-1)/BLOCK);
+    final int nb3 = max(1,(_m3+BLOCK-1)/BLOCK);
+    if (_bmin!=null && _bmin.length==nb3 && _bmin[0].length==nb2 &&
+        _bmin[0][0].length==nb1)
+      return;
+    final float[][][] bmin = new float[nb3][nb2][nb1];
+    final float[][][] bmax = new float[nb3][nb2][nb1];
+    Parallel.loop(nb3,new Parallel.LoopInt() {
+      public void compute(int b3) {
+        int i3a = b3*BLOCK, i3b = min(i3a+BLOCK,_n3-1);
+        for (int b2=0; b2<nb2; ++b2) {
+          int i2a = b2*BLOCK, i2b = min(i2a+BLOCK,_n2-1);
+          for (int b1=0; b1<nb1; ++b1) {
+            int i1a = b1*BLOCK, i1b = min(i1a+BLOCK,_n1-1);
+            float fmin = _f[i3a][i2a][i1a];
+            float fmax = fmin;
+            for (int i3=i3a; i3<=i3b; ++i3) {
+              for (int i2=i2a; i2<=i2b; ++i2) {
+                float[] f32 = _f[i3][i2];
+                for (int i1=i1a; i1<=i1b; ++i1) {
+                  float fi = f32[i1];
+                  if (fi<fmin) fmin = fi;
+                  if (fi>fmax) fmax = fi;
+                }
+              }
+            }
+            bmin[b3][b2][b1] = fmin;
+            bmax[b3][b2][b1] = fmax;
+          }
+        }
+      }
+    });
+    _bmin = bmin;
+    _bmax = bmax;
   }
 
   /**
-   * Searches for a starting point to begin the recursion.
-   * This technique works best if searching for a closed body, and can be
-   * much faster than searching from zero.
+   * Searches for a starting point to begin following the surface.
+   * Cubes are searched in both directions along the 1st dimension, and
+   * the nearest intersected cube is the starting point.
    * @param c the contour value.
    * @param i3 the index in the 3rd dimension.
    * @param i2 the index in the 2nd dimension.
    * @param i1 the index in the 1st dimension.
-   * @return the (z,y,x) of the starting index; null, if none.
+   * @return the index of the starting cube; -1, if none.
    */
-  private int[] findFirstCube(float c, int i3, int i2, int i1) {
-    int ii1 = i1;
-    while (isInBounds(i3,i2,ii1)) {
-      if (isValidCube(i3,i2,ii1++,c))
-        return new int[]{i3,i2,ii1};
-    }
-    ii1 = i1;
-    while (isInBounds(i3,i2,ii1)) {
-      if (isValidCube(i3,i2,ii1--,c))
-        return new int[]{i3,i2,ii1};
+  private long findFirstCube(float c, int i3, int i2, int i1) {
+    long k = _m1*(i2+(long)_m2*i3);
+    for (int d=0; i1-d>=0 || i1+d<_m1; ++d) {
+      if (i1+d<_m1 && isValidCube(i3,i2,i1+d,c)) return k+i1+d;
+      if (i1-d>=0 && isValidCube(i3,i2,i1-d,c)) return k+i1-d;
     }
-    return null;
+    return -1;
   }
 
   /**
@@ -837,56 +1018,9 @@ public class MarchingCubesTracking {
     if (_f[i3+1][i2  ][i1+1]>c) ci++;
     if (_f[i3+1][i2+1][i1+1]>c) ci++;
     if (_f[i3+1][i2+1][i1  ]>c) ci++;
-
-    if (ci==0 || ci==8) return false;
-    if (!canContinue(i3,i2,i1)) return false;
-
-    return true;
-  }
-
-  private boolean canContinue(int i3, int i2, int i1) {
-    // Is this cube in bounds?
-    if (!isInBounds(i3,i2,i1)) return false;
-
-    // Has this cube been marked yet?
-    if (_i[i3][i2][i1] == 1) return false;
-
-    return true; // Both tests pass
-  }
-
-  // TODO Hashmap.
-  private class Index {
-    ArrayList<int[]> al = new ArrayList<int[]>(); // Contains the ub&lb
-    IntList il = new IntList(); // Contains the index
-
-    int getIndex(int[] s1, int[] s2) {
-      for (int i=0; i<il.n; ++i) {
-        int[] i1 = al.get(2*i+0);
-        int[] i2 = al.get(2*i+1);
-        if (eq(s1,i1) && eq(s2,i2)) {
-          return il.get(i);
-        }
-      }
-      return -1;
-    }
-
-    void addIndex(int[] v1, int[] v2, int i) {
-      al.add(v1);
-      al.add(v2);
-      il.add(i);
-    }
-
-    void clear() {
-      al.clear();
-      il.clear();
-    }
-
-    private boolean eq(int[] a, int[] b) {
-      return (a[0]==b[0] && a[1]==b[1] && a[2]==b[2])?true:false;
-    }
+    return ci!=0 && ci!=8;
   }
 
-
     private void computeNormalVector(
     int j1, int j2, int j3, int k1, int k2, int k3,
     int n1, int n2, int n3, double d1, double d2, double d3,